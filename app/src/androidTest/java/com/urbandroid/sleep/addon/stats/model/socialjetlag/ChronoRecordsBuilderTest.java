@@ -0,0 +1,135 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.urbandroid.sleep.addon.stats.model.StatRecord;
+import com.urbandroid.sleep.addon.stats.model.socialjetlag.ChronoRecordsBuilder.Rejection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+public class ChronoRecordsBuilderTest {
+
+    private static final long HOUR = 3600 * 1000L;
+    private static final long DAY = 24 * HOUR;
+
+    //2017-07-14 00:00 UTC
+    private static final long START = 1500000000000L - 1500000000000L % DAY;
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    @Test
+    public void countsRejections() {
+        List<StatRecord> records = new ArrayList<>();
+        records.add(record(1, 8, 23f, 7f));
+        records.add(record(2, 8, 23f, 7f));
+        records.add(record(3, 8, 23f, 7f));
+
+        //Gross length out of [2, 16]
+        records.add(record(4, 1, 6f, 7f));
+        records.add(record(5, 17, 14f, 7f));
+        StatRecord noLength = record(6, 8, 23f, 7f);
+        noLength.setTrackLengthInHours(Float.NaN);
+        records.add(noLength);
+
+        StatRecord noFrom = record(7, 8, 23f, 7f);
+        noFrom.setFromDate(null);
+        records.add(noFrom);
+
+        StatRecord fromAfterTo = record(8, 8, 23f, 7f);
+        fromAfterTo.setFromDate(new Date(fromAfterTo.getToDate().getTime() + HOUR));
+        records.add(fromAfterTo);
+
+        StatRecord tooLong = record(9, 8, 23f, 7f);
+        tooLong.setFromDate(new Date(tooLong.getToDate().getTime() - 21 * HOUR));
+        records.add(tooLong);
+
+        records.add(record(10, 8, 24f, 7f));
+        records.add(record(11, 8, 23f, -1f));
+
+        ChronoRecordsBuilder builder = new ChronoRecordsBuilder(2, 16).addAll(records);
+        ChronoRecords built = builder.build();
+
+        Map<Rejection, Integer> expected = new EnumMap<>(Rejection.class);
+        expected.put(Rejection.GROSS_LENGTH, 3);
+        expected.put(Rejection.MISSING_DATE, 1);
+        expected.put(Rejection.FROM_AFTER_TO, 1);
+        expected.put(Rejection.TOO_LONG, 1);
+        expected.put(Rejection.INVALID_FROM_HOUR, 1);
+        expected.put(Rejection.INVALID_TO_HOUR, 1);
+        assertThat(builder.getRejectedCounts()).isEqualTo(expected);
+        assertThat(builder.getRejectedCount(Rejection.DUPLICATE)).isEqualTo(0);
+        assertThat(built.size()).isEqualTo(3);
+    }
+
+    @Test
+    public void lastAddedDuplicateWins() {
+        ChronoRecordsBuilder builder = new ChronoRecordsBuilder(2, 16);
+        assertThat(builder.add(record(3, 8, 23f, 7f))).isTrue();
+        builder.add(record(1, 8, 23f, 7f));
+        builder.add(record(2, 8, 23f, 7f));
+        builder.add(record(1, 8, 22f, 7f));
+        builder.add(record(3, 8, 21f, 7f));
+        builder.add(record(1, 8, 20f, 7f));
+
+        List<ChronoRecord> built = builder.build().getRecordsList();
+
+        assertThat(builder.getRejectedCount(Rejection.DUPLICATE)).isEqualTo(3);
+        assertThat(built).hasSize(3);
+        assertThat(built.get(0).getTo()).isEqualTo(new Date(START + DAY + 7 * HOUR));
+        assertThat(built.get(0).getFromHour()).isEqualTo(20f);
+        assertThat(built.get(1).getFromHour()).isEqualTo(23f);
+        assertThat(built.get(2).getFromHour()).isEqualTo(21f);
+    }
+
+    @Test
+    public void sameAsChronoRecords() {
+        //Shuffled, with duplicates and with dates too far apart to be packed with the indexes
+        List<ChronoRecord> records = WeeklyRecords.generate(3, 1000);
+        records.addAll(WeeklyRecords.generate(4, 100));
+        records.add(new ChronoRecord(new Date(-1000000 * 365 * DAY), new Date(-1000000 * 365 * DAY + 8 * HOUR),
+                0f, 8f, 8f, UTC));
+        Collections.shuffle(records, new Random(5));
+
+        ChronoRecordsBuilder builder = new ChronoRecordsBuilder(2, 16);
+        for (ChronoRecord record : records) {
+            builder.add(toStatRecord(record));
+        }
+        List<ChronoRecord> built = builder.build().getRecordsList();
+        List<ChronoRecord> expected = new ChronoRecords(records).getRecordsList();
+
+        assertThat(builder.getRejectedCount(Rejection.DUPLICATE)).isEqualTo(records.size() - expected.size());
+        assertThat(built).hasSize(expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertThat(built.get(i).getFrom()).isEqualTo(expected.get(i).getFrom());
+            assertThat(built.get(i).getTo()).isEqualTo(expected.get(i).getTo());
+            assertThat(built.get(i).getFromHour()).isEqualTo(expected.get(i).getFromHour());
+            assertThat(built.get(i).getLength()).isEqualTo(expected.get(i).getLength());
+        }
+    }
+
+    /**
+     * @param day days after START, the sleep ends at 7:00 UTC
+     */
+    private static StatRecord record(int day, int grossLength, float fromHour, float toHour) {
+        long to = START + day * DAY + 7 * HOUR;
+        StatRecord record = new StatRecord(new Date(to - grossLength * HOUR), new Date(to), UTC, fromHour, toHour);
+        record.setTrackLengthInHours(grossLength);
+        return record;
+    }
+
+    private static StatRecord toStatRecord(ChronoRecord record) {
+        StatRecord result = new StatRecord(
+                record.getFrom(), record.getTo(), record.getTimeZone(), record.getFromHour(), record.getToHour());
+        result.setTrackLengthInHours(record.getLength());
+        return result;
+    }
+}
@@ -0,0 +1,231 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+public class ChronoRecordsTest {
+
+    private ChronoRecords records = WeeklyRecords.records(1, 60);
+
+    @Test
+    public void copiesAreIndependent() {
+        ChronoRecords mondays = records.filterByDayOfWeek(Calendar.MONDAY);
+        float midSleep = mondays.getMidSleep(0);
+        long toTime = mondays.getToTime(0);
+
+        mondays.copyMidSleeps()[0] = -1f;
+        mondays.copyLengths()[0] = -1f;
+        mondays.copyToTimes()[0] = -1L;
+        records.copyMidSleeps()[0] = -1f;
+
+        assertThat(mondays.getMidSleep(0)).isEqualTo(midSleep);
+        assertThat(mondays.getLength(0)).isPositive();
+        assertThat(mondays.getToTime(0)).isEqualTo(toTime);
+        assertThat(records.getMidSleep(0)).isEqualTo(records.getRecordsList().get(0).getMidSleep());
+        assertThat(new SocialJetlagStats(mondays, false).getSleepIrregularity())
+                .isEqualTo(new SocialJetlagStats(records.filterByDayOfWeek(Calendar.MONDAY), false).getSleepIrregularity());
+    }
+
+    @Test
+    public void indexedGettersReadTheView() {
+        ChronoRecords range = records.narrow(new Date(records.getToTime(10)), new Date(records.getToTime(30)));
+        ChronoRecords mondays = records.filterByDayOfWeek(Calendar.MONDAY);
+        for (ChronoRecords view : new ChronoRecords[]{ records, range, mondays }) {
+            List<ChronoRecord> list = view.getRecordsList();
+            float[] midSleeps = view.copyMidSleeps();
+            long[] toTimes = view.copyToTimes();
+            assertThat(list).hasSize(view.size());
+            assertThat(midSleeps).hasSize(view.size());
+            for (int i = 0; i < view.size(); i++) {
+                ChronoRecord record = list.get(i);
+                assertThat(view.getFromHour(i)).isEqualTo(record.getFromHour());
+                assertThat(view.getToHour(i)).isEqualTo(record.getToHour());
+                assertThat(view.getMidSleep(i)).isEqualTo(record.getMidSleep()).isEqualTo(midSleeps[i]);
+                assertThat(view.getMidSleepUTC(i)).isEqualTo(record.getMidSleepUTC());
+                assertThat(view.getLength(i)).isEqualTo(record.getLength());
+                assertThat(view.getToTime(i)).isEqualTo(record.getTo().getTime()).isEqualTo(toTimes[i]);
+            }
+        }
+        assertThat(range.getToTime(0)).isEqualTo(records.getToTime(10));
+        //to is exclusive
+        assertThat(range.size()).isEqualTo(20);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void indexOutsideTheView() {
+        records.narrow(new Date(records.getToTime(10)), new Date(records.getToTime(30))).getMidSleep(20);
+    }
+
+    @Test
+    public void viewOfView() {
+        List<ChronoRecord> all = records.getRecordsList();
+        ChronoRecords range = records.narrow(new Date(all.get(5).getTo().getTime()), new Date(all.get(50).getTo().getTime()));
+        ChronoRecords longNights = range.split(new ChronoRecords.RecordToBool() {
+            @Override
+            public boolean apply(ChronoRecordValues record) {
+                return record.getLength() > 7;
+            }
+        }).getFirst();
+        ChronoRecords saturdays = longNights.filterByDayOfWeek(Calendar.SATURDAY);
+        ChronoRecords narrowed = longNights.narrow(new Date(all.get(20).getTo().getTime()), new Date(all.get(40).getTo().getTime()));
+
+        List<ChronoRecord> expectedLong = new ArrayList<>();
+        List<ChronoRecord> expectedSaturdays = new ArrayList<>();
+        List<ChronoRecord> expectedNarrowed = new ArrayList<>();
+        for (int i = 5; i < 50; i++) {
+            ChronoRecord record = all.get(i);
+            if (record.getLength() > 7) {
+                expectedLong.add(record);
+                if (record.getEndDayOfWeek() == Calendar.SATURDAY) {
+                    expectedSaturdays.add(record);
+                }
+                if (i >= 20 && i < 40) {
+                    expectedNarrowed.add(record);
+                }
+            }
+        }
+        assertThat(expectedSaturdays).isNotEmpty();
+        assertThat(expectedNarrowed).isNotEmpty();
+        assertSameRecords(longNights, expectedLong);
+        assertSameRecords(saturdays, expectedSaturdays);
+        assertSameRecords(narrowed, expectedNarrowed);
+        assertSameRecords(saturdays.narrow(narrowed.getFrom(), narrowed.getTo()),
+                intersection(expectedSaturdays, expectedNarrowed));
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void oldCallbackSignatureStillWorks() {
+        ChronoRecords longNights = records.split(new ChronoRecords.RecordToBool() {
+            @Override
+            public boolean apply(ChronoRecord record) {
+                return record.getLength() > 7;
+            }
+        }).getFirst();
+        List<ChronoRecord> expected = new ArrayList<>();
+        for (ChronoRecord record : records.getRecordsList()) {
+            if (record.getLength() > 7) {
+                expected.add(record);
+            }
+        }
+        assertSameRecords(longNights, expected);
+        assertThat(records.toFloats(new ChronoRecords.RecordToFloat() {
+            @Override
+            public float apply(ChronoRecord record) {
+                return record.getLength();
+            }
+        })).isEqualTo(records.copyLengths());
+    }
+
+    @Test
+    public void emptyRange() {
+        Date at = new Date(records.getToTime(10));
+        ChronoRecords empty = records.narrow(at, at);
+        assertSameRecords(empty, new ArrayList<ChronoRecord>());
+        assertThat(empty.getFrom()).isEqualTo(at);
+        assertThat(empty.getTo()).isEqualTo(at);
+
+        ChronoRecords before = records.narrow(new Date(0), new Date(1000));
+        assertSameRecords(before, new ArrayList<ChronoRecord>());
+        assertSameRecords(before.filterByDayOfWeek(Calendar.MONDAY), new ArrayList<ChronoRecord>());
+        assertSameRecords(before.narrow(new Date(0), new Date(500)), new ArrayList<ChronoRecord>());
+        assertThat(before.splitByDays(7, 7)).isEmpty();
+        assertThat(before.split(new ChronoRecords.RecordToBool() {
+            @Override
+            public boolean apply(ChronoRecordValues record) {
+                return true;
+            }
+        }).getFirst().size()).isZero();
+    }
+
+    @Test
+    public void narrowBoundaries() {
+        List<ChronoRecord> all = records.getRecordsList();
+        long from = records.getToTime(10);
+        long to = records.getToTime(30);
+
+        //from is inclusive, to is exclusive
+        assertSameRecords(records.narrow(new Date(from), new Date(to)), all.subList(10, 30));
+        assertSameRecords(records.narrow(new Date(from + 1), new Date(to + 1)), all.subList(11, 31));
+        assertSameRecords(records.narrow(new Date(from - 1), new Date(to - 1)), all.subList(10, 30));
+
+        //The same on a masked view, whose boundaries do not fall on the selected records
+        ChronoRecords fridays = records.filterByDayOfWeek(Calendar.FRIDAY);
+        List<ChronoRecord> expected = new ArrayList<>();
+        for (ChronoRecord record : all.subList(10, 30)) {
+            if (record.getEndDayOfWeek() == Calendar.FRIDAY) {
+                expected.add(record);
+            }
+        }
+        assertSameRecords(fridays.narrow(new Date(from), new Date(to)), expected);
+        long firstFriday = fridays.getToTime(0);
+        assertSameRecords(fridays.narrow(new Date(firstFriday), new Date(firstFriday)), new ArrayList<ChronoRecord>());
+        assertSameRecords(fridays.narrow(new Date(firstFriday), new Date(firstFriday + 1)), all.subList(
+                all.indexOf(fridays.getRecordsList().get(0)), all.indexOf(fridays.getRecordsList().get(0)) + 1));
+    }
+
+    @Test
+    public void filterByDayOfWeekSameAsCopying() {
+        List<ChronoRecords> sources = new ArrayList<>();
+        sources.add(records);
+        sources.add(records.narrow(new Date(records.getToTime(3)), new Date(records.getToTime(47))));
+        sources.addAll(records.splitByDays(20, 9));
+        for (ChronoRecords source : sources) {
+            for (int day = Calendar.SUNDAY; day <= Calendar.SATURDAY; day++) {
+                //What filterByDayOfWeek() used to do
+                List<ChronoRecord> copied = new ArrayList<>();
+                for (ChronoRecord record : source.getRecordsList()) {
+                    if (record.getEndDayOfWeek() == day) {
+                        copied.add(record);
+                    }
+                }
+                ChronoRecords view = source.filterByDayOfWeek(day);
+                assertSameRecords(view, copied);
+                assertThat(new SocialJetlagStats(view, false).getSleepIrregularity())
+                        .isEqualTo(new SocialJetlagStats(new ChronoRecords(copied), false).getSleepIrregularity());
+            }
+        }
+    }
+
+    private static List<ChronoRecord> intersection(List<ChronoRecord> a, List<ChronoRecord> b) {
+        List<ChronoRecord> result = new ArrayList<>(a);
+        result.retainAll(b);
+        return result;
+    }
+
+    /**
+     * All the public getters of the view return just the expected records.
+     */
+    private static void assertSameRecords(ChronoRecords view, List<ChronoRecord> expected) {
+        ChronoRecords copy = new ChronoRecords(expected);
+        int size = expected.size();
+        assertThat(view.size()).isEqualTo(size);
+        assertThat(view.getRecordsList()).isEqualTo(expected);
+        assertThat(new ArrayList<>(view.getRecords().values())).isEqualTo(expected);
+        assertThat(view.copyFromHours()).isEqualTo(copy.copyFromHours());
+        assertThat(view.copyToHours()).isEqualTo(copy.copyToHours());
+        assertThat(view.copyMidSleeps()).isEqualTo(copy.copyMidSleeps());
+        assertThat(view.copyMidSleepsUTC()).isEqualTo(copy.copyMidSleepsUTC());
+        assertThat(view.copyLengths()).isEqualTo(copy.copyLengths());
+        assertThat(view.copyToTimes()).isEqualTo(copy.copyToTimes());
+        assertThat(view.toFloats(new ChronoRecords.RecordToFloat() {
+            @Override
+            public float apply(ChronoRecordValues record) {
+                return record.getLength();
+            }
+        })).isEqualTo(copy.copyLengths());
+        ChronoRecords.Cursor cursor = view.cursor();
+        for (int i = 0; i < size; i++) {
+            assertThat(cursor.moveToNext()).isTrue();
+            assertThat(cursor.getToTime()).isEqualTo(expected.get(i).getTo().getTime()).isEqualTo(view.getToTime(i));
+            assertThat(cursor.getMidSleep()).isEqualTo(expected.get(i).getMidSleep()).isEqualTo(view.getMidSleep(i));
+        }
+        assertThat(cursor.moveToNext()).isFalse();
+    }
+}
@@ -0,0 +1,48 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class CyclicMedianTest {
+
+    @Test
+    public void sameAsMedianOnWrappingData() {
+        float[] odd = new float[]{ 23.5f, 0.25f, 22.75f, 1.5f, 23f, 0.5f, 2f };
+        float[] even = new float[]{ 23.5f, 0.25f, 22.75f, 1.5f, 23f, 0.5f, 2f, 23.75f };
+
+        assertThat(CyclicKernelKt.quickMedian(odd, 24f)).isEqualTo(CyclicFloatKt.median(odd, 24f)).isEqualTo(0.25f);
+        assertThat(CyclicKernelKt.quickMedian(even, 24f)).isEqualTo(CyclicFloatKt.median(even, 24f));
+        assertThat(CyclicKernelKt.quickMedian(new float[0], 24f)).isNaN();
+        assertThat(CyclicKernelKt.quickMedian(new double[]{ 23.5 }, 24)).isEqualTo(23.5);
+    }
+
+    @Test
+    public void sameAsMedianOnRandomData() {
+        Random random = new Random(17);
+        double[] scratch = new double[64];
+        for (int round = 0; round < 2000; round++) {
+            //Odd and even counts, with duplicates, around a random point of the day
+            int size = 1 + random.nextInt(40);
+            double center = random.nextDouble() * 24;
+            float[] floats = new float[size];
+            double[] doubles = new double[size];
+            for (int i = 0; i < size; i++) {
+                doubles[i] = random.nextInt(5) == 0 && i > 0
+                        ? doubles[i - 1]
+                        : CyclicDoubleKt.normalize(center + random.nextGaussian() * 3, 24);
+                floats[i] = (float) doubles[i];
+            }
+            double[] copy = doubles.clone();
+
+            assertThat(CyclicKernelKt.quickMedian(floats, 24f, scratch)).isEqualTo(CyclicFloatKt.median(floats, 24f));
+            assertThat(CyclicKernelKt.quickMedian(doubles, 24, scratch)).isEqualTo(CyclicDoubleKt.median(doubles, 24));
+            assertThat(CyclicKernelKt.quickMedian(doubles, center, 24, scratch))
+                    .isEqualTo(CyclicDoubleKt.median(doubles, center, 24));
+            //The input is not reordered
+            assertThat(doubles).isEqualTo(copy);
+        }
+    }
+}
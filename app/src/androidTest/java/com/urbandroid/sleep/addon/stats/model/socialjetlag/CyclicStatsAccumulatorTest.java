@@ -0,0 +1,148 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+public class CyclicStatsAccumulatorTest {
+
+    //Bedtimes around midnight, wrapping around the cycle
+    private float[] wrapping = new float[]{ 23.5f, 0.25f, 22.75f, 1.5f, 23f, 0.5f, 2f, 23.75f };
+
+    @Test
+    public void sameAsCenterAndStdevOnWrappingData() {
+        CyclicStatsAccumulator accumulator = CyclicStatsAccumulator.of(wrapping, 24);
+
+        assertThat(accumulator.getCount()).isEqualTo(wrapping.length);
+        assertThat(accumulator.getCenter()).isCloseTo(CyclicFloatKt.center(wrapping, 24), within(1e-4));
+        assertThat(accumulator.getStdev()).isCloseTo(CyclicFloatKt.stdev(wrapping, 24), within(1e-4));
+        assertThat(accumulator.getCenter()).isCloseTo(0.15625, within(1e-9));
+    }
+
+    @Test
+    public void emptyIsNaN() {
+        CyclicStatsAccumulator accumulator = new CyclicStatsAccumulator(24);
+
+        assertThat(accumulator.getCenter()).isNaN();
+        assertThat(accumulator.getStdev()).isNaN();
+        assertThat(accumulator.getSumOfSquaredDistances()).isEqualTo(0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void removeFromEmpty() {
+        CyclicStatsAccumulator accumulator = new CyclicStatsAccumulator(24);
+        accumulator.add(1);
+        accumulator.remove(1);
+        accumulator.remove(1);
+    }
+
+    @Test
+    public void removeIsInverseOfAdd() {
+        CyclicStatsAccumulator accumulator = new CyclicStatsAccumulator(24);
+        for (float x : wrapping) {
+            accumulator.add(x);
+        }
+        //Move the center far from the first point, then remove the points added first
+        for (int i = 0; i < 5; i++) {
+            accumulator.add(3f + i * 0.25f);
+        }
+        for (int i = 0; i < 4; i++) {
+            accumulator.remove(wrapping[i]);
+        }
+
+        CyclicStatsAccumulator expected = new CyclicStatsAccumulator(24);
+        for (int i = 4; i < wrapping.length; i++) {
+            expected.add(wrapping[i]);
+        }
+        for (int i = 0; i < 5; i++) {
+            expected.add(3f + i * 0.25f);
+        }
+
+        assertThat(accumulator.getCount()).isEqualTo(expected.getCount());
+        assertThat(accumulator.getCenter()).isCloseTo(expected.getCenter(), within(1e-9));
+        assertThat(accumulator.getStdev()).isCloseTo(expected.getStdev(), within(1e-9));
+    }
+
+    @Test
+    public void removeAllStartsOver() {
+        CyclicStatsAccumulator accumulator = new CyclicStatsAccumulator(24);
+        accumulator.add(23);
+        accumulator.remove(23);
+        accumulator.add(11);
+        accumulator.add(13);
+
+        assertThat(accumulator.getAnchor()).isEqualTo(11);
+        assertThat(accumulator.getCenter()).isCloseTo(12, within(1e-9));
+        assertThat(accumulator.getStdev()).isCloseTo(1, within(1e-9));
+    }
+
+    @Test
+    public void merge() {
+        CyclicStatsAccumulator first = CyclicStatsAccumulator.of(new float[]{ 23f, 23.5f, 0.5f }, 24);
+        CyclicStatsAccumulator second = CyclicStatsAccumulator.of(new float[]{ 1f, 22.5f }, 24);
+        first.merge(second);
+
+        CyclicStatsAccumulator all = CyclicStatsAccumulator.of(new float[]{ 23f, 23.5f, 0.5f, 1f, 22.5f }, 24);
+        assertThat(first.getCount()).isEqualTo(5);
+        assertThat(first.getCenter()).isCloseTo(all.getCenter(), within(1e-9));
+        assertThat(first.getStdev()).isCloseTo(all.getStdev(), within(1e-9));
+    }
+
+    @Test
+    public void ofDoesNotDependOnOrder() {
+        CyclicStatsAccumulator first = CyclicStatsAccumulator.of(new float[]{ 23f, 1f, 22f, 0.5f }, 24);
+        CyclicStatsAccumulator second = CyclicStatsAccumulator.of(new float[]{ 1f, 0.5f, 23f, 22f }, 24);
+
+        assertThat(first.getAnchor()).isCloseTo(second.getAnchor(), within(1e-9));
+        assertThat(first.getCenter()).isCloseTo(second.getCenter(), within(1e-9));
+        assertThat(first.getStdev()).isCloseTo(second.getStdev(), within(1e-9));
+    }
+
+    @Test
+    public void vectorSumOfAntipodalPoints() {
+        CyclicVectorSum sum = CyclicVectorSumKt.vectorSum(new float[]{ 6f, 18f }, 24);
+
+        assertThat(sum.center(24)).isNaN();
+        assertThat(sum.meanResultantLength()).isCloseTo(0, within(1e-9));
+        assertThat(CyclicVectorSumKt.vectorSum(new float[]{ 6f, 18f, 7f }, 24).center(24)).isCloseTo(7, within(1e-9));
+
+        //There is no mean direction, so the points are measured from the first one
+        CyclicStatsAccumulator accumulator = CyclicStatsAccumulator.of(new float[]{ 6f, 18f }, 24);
+        assertThat(accumulator.getAnchor()).isEqualTo(6);
+        assertThat(accumulator.getStdev()).isCloseTo(6, within(1e-9));
+    }
+
+    @Test
+    public void windowFollowsDriftingSchedule() {
+        //Bedtime drifting by an hour every night, so it goes around the clock more than twice
+        List<ChronoRecord> records = new ArrayList<>();
+        long start = Instant.parse("2018-11-11T10:00:10Z").toEpochMilli();
+        for (int i = 0; i < 60; i++) {
+            float fromHour = (22f + i) % 24;
+            long to = start + i * 24 * 3600 * 1000L;
+            records.add(new ChronoRecord(
+                    new Date(to - 8 * 3600 * 1000L), new Date(to),
+                    fromHour, (fromHour + 8) % 24, 7f + (i % 3) * 0.5f));
+        }
+
+        SleepIrregularityWindow window = new SleepIrregularityWindow(false);
+        for (int i = 0; i < records.size(); i++) {
+            window.add(records.get(i));
+            if (i >= 7) {
+                window.remove(records.get(i - 7));
+            }
+            SleepIrregularityWindow expected = new SleepIrregularityWindow(false);
+            for (int j = Math.max(0, i - 6); j <= i; j++) {
+                expected.add(records.get(j));
+            }
+            assertThat(window.size()).isEqualTo(expected.size());
+            assertThat(window.getSleepIrregularity()).isCloseTo(expected.getSleepIrregularity(), within(1e-4f));
+        }
+    }
+}
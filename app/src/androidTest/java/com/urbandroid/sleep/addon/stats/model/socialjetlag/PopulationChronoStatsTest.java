@@ -0,0 +1,113 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class PopulationChronoStatsTest {
+
+    private float[] distributionMidSleeps = new float[]{ Float.NEGATIVE_INFINITY, 3f, 4.5f, 6f };
+    private float[] distributionQuantiles = new float[]{ 0f, 0.25f, 0.5f, 0.75f };
+    private float[] histBins = new float[]{ 2.5f, 3f, 4.75f, 6.25f };
+    private float[] histCounts = new float[]{ 1f, 10f, 25f, 4f };
+
+    @After
+    public void restoreBuiltInTables() {
+        PopulationChronoStats.loadBuiltIn();
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        byte[] bytes = write();
+
+        DataInputStream header = new DataInputStream(new ByteArrayInputStream(bytes));
+        assertThat(header.readInt()).isEqualTo(0x50435354);
+        assertThat(header.readInt()).isEqualTo(1);
+        //Header, then both tables as the size and the key-value pairs
+        assertThat(bytes.length).isEqualTo(8 + 2 * 4 + (4 + 4) * 4 * 2);
+
+        PopulationChronoStats.load(new ByteArrayInputStream(bytes));
+
+        assertThat(PopulationChronoStats.getMidSleepOnFreeDaysHistogramBins()).isEqualTo(histBins);
+        assertThat(PopulationChronoStats.getMidSleepOnFreeDaysHistogramCounts()).isEqualTo(histCounts);
+        assertThat(PopulationChronoStats.getMidSleepOnFreeDaysHistogram()).hasSize(histBins.length);
+        assertThat(PopulationChronoStats.getChronotypeQuantile(1f)).isEqualTo(0f);
+        assertThat(PopulationChronoStats.getChronotypeQuantile(3f)).isEqualTo(0.25f);
+        assertThat(PopulationChronoStats.getChronotypeQuantile(5f)).isEqualTo(0.5f);
+        assertThat(PopulationChronoStats.getChronotypeQuantile(12f)).isEqualTo(0.75f);
+        assertThat(PopulationChronoStats.getChronotypeQuantileInterpolated(5.25f)).isCloseTo(0.625f, within(1e-6f));
+    }
+
+    @Test
+    public void invalidTablesAreNotLoaded() throws IOException {
+        float builtIn = PopulationChronoStats.getChronotypeQuantile(5f);
+        byte[] bytes = write();
+
+        byte[] otherVersion = bytes.clone();
+        otherVersion[7] = 2;
+        assertNotLoaded(otherVersion);
+
+        byte[] otherMagic = bytes.clone();
+        otherMagic[0] = 0;
+        assertNotLoaded(otherMagic);
+
+        assertNotLoaded(Arrays.copyOf(bytes, bytes.length - 1));
+
+        assertThat(PopulationChronoStats.getChronotypeQuantile(5f)).isEqualTo(builtIn);
+    }
+
+    @Test
+    public void builderQuantilesWithinMinuteOfExact() throws IOException {
+        Random random = new Random(7);
+        float[] midSleeps = new float[20000];
+        PopulationChronoStatsBuilder builder = new PopulationChronoStatsBuilder();
+        PopulationChronoStatsBuilder shard = new PopulationChronoStatsBuilder();
+        for (int i = 0; i < midSleeps.length; i++) {
+            midSleeps[i] = (float) Math.min(23.99, Math.max(0, 4.8 + 1.5 * random.nextGaussian()));
+            (i % 2 == 0 ? builder : shard).addMidSleepOnFreeDays(midSleeps[i]);
+        }
+        builder.merge(shard);
+        Arrays.sort(midSleeps);
+
+        assertThat(builder.getCount()).isEqualTo(midSleeps.length);
+        for (int i = 1; i < 100; i++) {
+            double quantile = i / 100.0;
+            //The exact quantile, the smallest mid sleep with at least the given fraction of the users at or below it
+            float exact = midSleeps[(int) Math.ceil(quantile * midSleeps.length) - 1];
+            assertThat(builder.getMidSleep(quantile)).isCloseTo(exact, within(1 / 60f));
+        }
+
+        //The written deciles are the quantiles of the builder
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        builder.write(out);
+        PopulationChronoStats.load(new ByteArrayInputStream(out.toByteArray()));
+        for (int i = 1; i < 10; i++) {
+            assertThat(PopulationChronoStats.getChronotypeQuantile(builder.getMidSleep(i / 10.0)))
+                    .isCloseTo(i / 10f, within(1e-6f));
+        }
+    }
+
+    private byte[] write() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PopulationChronoStats.write(out, distributionMidSleeps, distributionQuantiles, histBins, histCounts);
+        return out.toByteArray();
+    }
+
+    private static void assertNotLoaded(byte[] bytes) {
+        try {
+            PopulationChronoStats.load(new ByteArrayInputStream(bytes));
+        } catch (IOException e) {
+            return;
+        }
+        throw new AssertionError("Loaded invalid tables");
+    }
+}
@@ -0,0 +1,110 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.urbandroid.sleep.addon.stats.model.StatRecord;
+
+import org.apache.commons.math3.util.Pair;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+public class SocialJetlagStatsCacheTest {
+
+    private ChronoRecords records = WeeklyRecords.records(1, 300);
+
+    @Test
+    public void cachedSameAsUncached() {
+        SocialJetlagStats uncached = new SocialJetlagStats(records, false);
+        SocialJetlagStatsCache cache = new SocialJetlagStatsCache(4);
+        SocialJetlagStats cached = new SocialJetlagStats(records, false, cache);
+
+        List<ChronoRecords> chunks = records.splitByMonth(3, 1);
+        for (int pass = 0; pass < 2; pass++) {
+            for (ChronoRecords chunk : chunks) {
+                SocialJetlagStats expected = uncached.narrow(chunk.getFrom(), chunk.getTo());
+                SocialJetlagStats actual = cached.narrow(chunk.getFrom(), chunk.getTo());
+
+                assertThat(actual.size()).isEqualTo(expected.size());
+                assertThat(actual.getSleepIrregularity()).isEqualTo(expected.getSleepIrregularity());
+                assertThat(actual.hasGoodClustering()).isEqualTo(expected.hasGoodClustering());
+                assertThat(actual.getFreeDays().size()).isEqualTo(expected.getFreeDays().size());
+                assertThat(actual.getSocialJetLag()).isEqualTo(expected.getSocialJetLag());
+                assertThat(actual.getChronotype()).isEqualTo(expected.getChronotype());
+            }
+        }
+        //The cache is smaller than the number of chunks, so the second pass computes everything again
+        assertThat(cache.getMisses()).isEqualTo(2 * chunks.size());
+        assertThat(cache.size()).isEqualTo(4);
+    }
+
+    @Test
+    public void cachedInstanceIsReused() {
+        SocialJetlagStatsCache cache = new SocialJetlagStatsCache();
+        SocialJetlagStats cached = new SocialJetlagStats(records, false, cache);
+        SocialJetlagStats uncached = new SocialJetlagStats(records, false);
+        ChronoRecords chunk = records.splitByMonth(2, 1).get(1);
+
+        SocialJetlagStats narrowed = cached.narrow(chunk.getFrom(), chunk.getTo());
+        assertThat(cached.narrow(chunk.getFrom(), chunk.getTo())).isSameAs(narrowed);
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(cache.getMisses()).isEqualTo(1);
+
+        assertThat(uncached.narrow(chunk.getFrom(), chunk.getTo()))
+                .isNotSameAs(uncached.narrow(chunk.getFrom(), chunk.getTo()));
+    }
+
+    @Test
+    public void historyDoesNotChangeCachedStats() {
+        SocialJetlagStatsCache cache = new SocialJetlagStatsCache();
+        SocialJetlagStats cached = new SocialJetlagStats(records, false, cache);
+        SocialJetlagStats uncached = new SocialJetlagStats(records, false);
+
+        List<Pair<Date, Float>> first = cached.getChronotypeHistory(3, 1);
+        //The history must not fill the cache with warm started stats
+        assertThat(cache.size()).isEqualTo(0);
+
+        for (ChronoRecords chunk : records.splitByMonth(3, 1)) {
+            assertThat(cached.narrow(chunk.getFrom(), chunk.getTo()).getChronotype())
+                    .isEqualTo(uncached.narrow(chunk.getFrom(), chunk.getTo()).getChronotype());
+        }
+        assertThat(cached.getChronotypeHistory(3, 1)).isEqualTo(first);
+    }
+
+    @Test
+    public void sameDataCreatedAgainHits() {
+        List<StatRecord> statRecords = new ArrayList<>();
+        for (ChronoRecord record : WeeklyRecords.generate(1, 300)) {
+            StatRecord statRecord = new StatRecord(
+                    record.getFrom(), record.getTo(), record.getTimeZone(), record.getFromHour(), record.getToHour());
+            statRecord.setTrackLengthInHours(record.getLength());
+            statRecords.add(statRecord);
+        }
+        SocialJetlagStatsCache cache = new SocialJetlagStatsCache();
+        SocialJetlagStats first = SocialJetlagStats.create(statRecords, null, cache);
+        SocialJetlagStats second = SocialJetlagStats.create(statRecords, null, cache);
+        assertThat(second.getRecords()).isNotSameAs(first.getRecords());
+
+        ChronoRecords chunk = first.getRecords().splitByMonth(2, 1).get(1);
+        SocialJetlagStats narrowed = first.narrow(chunk.getFrom(), chunk.getTo());
+        assertThat(second.narrow(chunk.getFrom(), chunk.getTo())).isSameAs(narrowed);
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(cache.getMisses()).isEqualTo(1);
+
+        //The same for the stats narrowed from the narrowed ones
+        ChronoRecords week = chunk.splitByDays(7, 7).get(1);
+        SocialJetlagStats narrowedTwice = narrowed.narrow(week.getFrom(), week.getTo());
+        SocialJetlagStats again = SocialJetlagStats.create(statRecords, null, cache).narrow(chunk.getFrom(), chunk.getTo());
+        assertThat(again.narrow(week.getFrom(), week.getTo())).isSameAs(narrowedTwice);
+        assertThat(cache.getHits()).isEqualTo(3);
+        assertThat(cache.getMisses()).isEqualTo(2);
+
+        //Different data does not hit
+        statRecords.get(statRecords.size() / 2).setTrackLengthInHours(5);
+        assertThat(SocialJetlagStats.create(statRecords, null, cache).narrow(chunk.getFrom(), chunk.getTo()))
+                .isNotSameAs(narrowed);
+        assertThat(cache.getMisses()).isEqualTo(3);
+    }
+}
@@ -1,16 +1,27 @@
 package com.urbandroid.sleep.addon.stats.model.socialjetlag;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.junit.Assert.fail;
 
 import com.urbandroid.sleep.addon.stats.model.StatRecord;
 import com.urbandroid.util.ScienceUtil;
 
+import org.apache.commons.math3.util.Pair;
 import org.junit.Test;
 
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class SocialJetlagStatsTest {
 
@@ -59,8 +70,8 @@ public class SocialJetlagStatsTest {
     public void testGetRecordIrregularity() {
 
         SocialJetlagStats  stats = new SocialJetlagStats(cr, false);
-        assertThat(CyclicFloatKt.center(stats.getRecords().getMidSleeps(), 24)).isEqualTo(6.625f);
-        assertThat(ScienceUtil.avg(stats.getRecords().getLengths())).isEqualTo(6.5f);
+        assertThat(CyclicFloatKt.center(stats.getRecords().copyMidSleeps(), 24)).isEqualTo(6.625f);
+        assertThat(ScienceUtil.avg(stats.getRecords().copyLengths())).isEqualTo(6.5f);
 
         StatRecord record = new StatRecord(
                 Date.from(Instant.parse("2018-11-11T01:30:10Z")),
@@ -71,4 +82,78 @@ public class SocialJetlagStatsTest {
 
         assertThat(stats.getRecordIrregularity(record)).isEqualTo( ((6.625f - 3.5f) + (8.5f - 6.5f)) / 2f );
     }
+
+    @Test
+    public void testSleepIrregularityHistory() {
+
+        SocialJetlagStats stats = new SocialJetlagStats(cr, false);
+        List<Pair<Date, Float>> history = stats.getSleepIrregularityHistory(20, 1);
+        List<ChronoRecords> chunks = cr.splitByDays(20, 1);
+
+        assertThat(history).hasSize(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            assertThat(history.get(i).getFirst()).isEqualTo(chunks.get(i).getTo());
+            assertThat(history.get(i).getSecond()).isCloseTo(
+                    new SocialJetlagStats(chunks.get(i), false).getSleepIrregularity(), within(1e-5f));
+        }
+    }
+
+    @Test
+    public void midSleepStatsOfWidelySpreadNights() {
+        //Mid sleeps 16, 0, 7, 18, 3, 10 - spread all around the clock, so the order of a pairwise fold matters
+        float[] fromHours = { 12f, 20f, 3f, 14f, 23f, 6f };
+        List<ChronoRecord> records = new ArrayList<>();
+        for (int i = 0; i < fromHours.length; i++) {
+            Date from = Date.from(Instant.parse("2018-11-11T00:00:00Z").plusSeconds(i * 86400L + (long) (fromHours[i] * 3600)));
+            Date to = new Date(from.getTime() + 8 * 3600000L);
+            records.add(new ChronoRecord(from, to, fromHours[i], (fromHours[i] + 8) % 24, 7f, TimeZone.getTimeZone("UTC")));
+        }
+        SocialJetlagStats stats = new SocialJetlagStats(new ChronoRecords(records), false);
+
+        //Measured around the circular mean now, the pairwise fold gave 1.000001 and (6.4807405 + 0) / 2
+        assertThat(stats.getAverageMidSleepHour()).isEqualTo(5f);
+        assertThat(stats.getSleepIrregularity()).isEqualTo(3.535534f);
+
+        float[] midSleeps = stats.getRecords().copyMidSleeps();
+        assertThat(CyclicFloatKt.pairwiseCenter(midSleeps, 24)).isCloseTo(1f, within(1e-5f));
+        assertThat(CyclicFloatKt.center(midSleeps, 24)).isEqualTo(5f);
+        assertThat(CyclicFloatKt.stdev(midSleeps, 24)).isCloseTo(7.071068f, within(1e-5f));
+    }
+
+    @Test
+    public void parallelChronotypeHistorySameAsSequential() throws Exception {
+        SocialJetlagStats stats = new SocialJetlagStats(WeeklyRecords.records(2, 800), false);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Pair<Date, Float>> sequential = stats.getChronotypeHistory(3, 1);
+            //More windows than in a single warm start chain
+            assertThat(sequential.size()).isGreaterThan(12);
+            assertThat(stats.getChronotypeHistory(3, 1, executor, 1, TimeUnit.MINUTES)).isEqualTo(sequential);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void chronotypeHistoryTimeoutCancelsPendingChains() throws Exception {
+        SocialJetlagStats stats = new SocialJetlagStats(WeeklyRecords.records(2, 800), false);
+        //Never runs the chains
+        final List<Runnable> queued = new ArrayList<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        };
+        try {
+            stats.getChronotypeHistory(3, 1, executor, 10, TimeUnit.MILLISECONDS);
+            fail("Expected TimeoutException");
+        } catch (TimeoutException expected) {
+            //expected
+        }
+        assertThat(queued.size()).isGreaterThan(1);
+        for (Runnable chain : queued) {
+            assertThat(((Future<?>) chain).isCancelled()).isTrue();
+        }
+    }
 }
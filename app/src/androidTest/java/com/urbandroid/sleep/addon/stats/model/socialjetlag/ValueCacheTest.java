@@ -0,0 +1,152 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ValueCacheTest {
+
+    private static final int THREADS = 16;
+
+    private enum Key { VALUE, NULL_VALUE, FLOAT }
+
+    @Test
+    public void computesOnceForConcurrentCallers() throws Exception {
+        final ValueCache<Key> cache = new ValueCache<>(Key.class);
+        final AtomicInteger computations = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Object> results = runConcurrently(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                start.await();
+                return cache.computeIfAbsent(Key.VALUE, new ValueCache.Supplier<Object>() {
+                    @Override
+                    public Object get() {
+                        computations.incrementAndGet();
+                        sleep(20);
+                        return new Object();
+                    }
+                });
+            }
+        }, start);
+
+        assertThat(computations.get()).isEqualTo(1);
+        for (Object result : results) {
+            assertThat(result).isNotNull().isSameAs(results.get(0));
+        }
+        assertThat(cache.<Object>get(Key.VALUE)).isSameAs(results.get(0));
+    }
+
+    @Test
+    public void cachesNull() {
+        ValueCache<Key> cache = new ValueCache<>(Key.class);
+        final AtomicInteger computations = new AtomicInteger();
+        ValueCache.Supplier<Object> supplier = new ValueCache.Supplier<Object>() {
+            @Override
+            public Object get() {
+                computations.incrementAndGet();
+                return null;
+            }
+        };
+
+        assertThat(cache.computeIfAbsent(Key.NULL_VALUE, supplier)).isNull();
+        assertThat(cache.computeIfAbsent(Key.NULL_VALUE, supplier)).isNull();
+        assertThat(computations.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void failedComputationIsNotCached() throws Exception {
+        final ValueCache<Key> cache = new ValueCache<>(Key.class);
+        final AtomicInteger computations = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final ValueCache.Supplier<String> supplier = new ValueCache.Supplier<String>() {
+            @Override
+            public String get() {
+                //The first computation fails after the other threads had the chance to wait for it
+                if (computations.incrementAndGet() == 1) {
+                    sleep(50);
+                    throw new IllegalArgumentException("first");
+                }
+                return "value";
+            }
+        };
+
+        List<Object> results = runConcurrently(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                start.await();
+                while (true) {
+                    try {
+                        return cache.computeIfAbsent(Key.VALUE, supplier);
+                    } catch (IllegalArgumentException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            }
+        }, start);
+
+        //Never null, whichever way a thread saw the failure
+        for (Object result : results) {
+            assertThat(result).isEqualTo("value");
+        }
+        assertThat(failures.get()).isGreaterThanOrEqualTo(1);
+        assertThat(computations.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void computesFloat() {
+        ValueCache<Key> cache = new ValueCache<>(Key.class);
+        ValueCache.FloatSupplier supplier = new ValueCache.FloatSupplier() {
+            @Override
+            public float get() {
+                return -0.5f;
+            }
+        };
+
+        assertThat(cache.computeFloatIfAbsent(Key.FLOAT, supplier)).isEqualTo(-0.5f);
+        assertThat(cache.computeFloatIfAbsent(Key.FLOAT, new ValueCache.FloatSupplier() {
+            @Override
+            public float get() {
+                return 1f;
+            }
+        })).isEqualTo(-0.5f);
+    }
+
+    private static List<Object> runConcurrently(Callable<Object> task, CountDownLatch start) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Object>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executor.submit(task));
+            }
+            start.countDown();
+            List<Object> results = new ArrayList<>();
+            for (Future<Object> future : futures) {
+                results.add(future.get(10, TimeUnit.SECONDS));
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
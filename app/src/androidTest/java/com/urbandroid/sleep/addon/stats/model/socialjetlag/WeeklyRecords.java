@@ -0,0 +1,45 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag;
+
+import com.urbandroid.util.ZoneOffsets;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Random records of a regular week in UTC - early and short sleeps on the work days,
+ * late and long on the weekends, and an occasional outlier.
+ */
+class WeeklyRecords {
+
+    private static final long HOUR = 3600 * 1000L;
+    private static final long DAY = 24 * HOUR;
+
+    //2017-07-14, a Friday
+    private static final long START = 1500000000000L - 1500000000000L % DAY;
+
+    static List<ChronoRecord> generate(long seed, int days) {
+        Random random = new Random(seed);
+        TimeZone utc = TimeZone.getTimeZone("UTC");
+        List<ChronoRecord> records = new ArrayList<>();
+        for (int i = 0; i < days; i++) {
+            boolean weekend = i % 7 == 1 || i % 7 == 2;
+            double wakeUp = (weekend ? 9.5 : 6.5) + random.nextGaussian() * 0.4;
+            double length = (weekend ? 8.5 : 6.5) + random.nextGaussian() * 0.4;
+            if (random.nextInt(30) == 0) {
+                wakeUp += 5;
+            }
+            long to = START + i * DAY + (long) (wakeUp * HOUR);
+            long from = to - (long) (length * HOUR);
+            records.add(new ChronoRecord(new Date(from), new Date(to),
+                    ZoneOffsets.UTC.getHourOfDay(from), ZoneOffsets.UTC.getHourOfDay(to), (float) length, utc));
+        }
+        return records;
+    }
+
+    static ChronoRecords records(long seed, int days) {
+        return new ChronoRecords(generate(seed, days));
+    }
+}
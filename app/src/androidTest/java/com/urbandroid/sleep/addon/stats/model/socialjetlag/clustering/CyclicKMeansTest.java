@@ -0,0 +1,187 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag.clustering;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import com.urbandroid.sleep.addon.stats.model.socialjetlag.CyclicDoubleKt;
+
+import org.apache.commons.math3.random.JDKRandomGenerator;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class CyclicKMeansTest {
+
+    private static final double[] CYCLES = new double[]{ 24 };
+
+    @Test
+    public void seededIsDeterministic() {
+        double[] points = points(1, 200, 1.5, 7.5, 15);
+
+        CyclicKMeans.Result first = kMeans(3, 42).cluster(points);
+        CyclicKMeans.Result second = kMeans(3, 42).cluster(points);
+        assertThat(second.getCenters()).isEqualTo(first.getCenters());
+        assertThat(second.getAssignments()).isEqualTo(first.getAssignments());
+        assertThat(second.getInertia()).isEqualTo(first.getInertia());
+
+        CyclicKMeans.Result firstRestarts = kMeans(3, 42).cluster(points, 5);
+        CyclicKMeans.Result secondRestarts = kMeans(3, 42).cluster(points, 5);
+        assertThat(secondRestarts.getCenters()).isEqualTo(firstRestarts.getCenters());
+        assertThat(secondRestarts.getAssignments()).isEqualTo(firstRestarts.getAssignments());
+    }
+
+    @Test
+    public void clusterAroundMidnight() {
+        //One cluster on both sides of midnight, the other around noon
+        double[] points = points(2, 100, 23.75, 12);
+
+        CyclicKMeans.Result result = kMeans(2, 7).cluster(points, 3);
+
+        int midnight = result.getAssignments()[0];
+        for (int i = 0; i < points.length; i++) {
+            assertThat(result.getAssignments()[i]).isEqualTo(i % 2 == 0 ? midnight : 1 - midnight);
+        }
+        assertThat(CyclicDoubleKt.distance(result.getCenters()[midnight], 23.75, 24)).isLessThan(0.2);
+        assertThat(CyclicDoubleKt.distance(result.getCenters()[1 - midnight], 12, 24)).isLessThan(0.2);
+        assertThat(result.getSize(midnight)).isEqualTo(100);
+    }
+
+    @Test
+    public void centroidMinimizesSquaredDistances() {
+        double[] points = points(3, 50, 23);
+
+        CyclicKMeans.Result result = CyclicKMeans.centroid(points, CYCLES);
+
+        //Brute force over the whole cycle
+        double best = Double.NaN;
+        double bestInertia = Double.POSITIVE_INFINITY;
+        for (double center = 0; center < 24; center += 1e-4) {
+            double inertia = 0;
+            for (double point : points) {
+                double distance = CyclicDoubleKt.distance(point, center, 24);
+                inertia += distance * distance;
+            }
+            if (inertia < bestInertia) {
+                best = center;
+                bestInertia = inertia;
+            }
+        }
+        assertThat(CyclicDoubleKt.distance(result.getCenters()[0], best, 24)).isLessThan(1e-3);
+        assertThat(result.getInertia()).isCloseTo(bestInertia, within(1e-4));
+        assertThat(result.getAssignments()).containsOnly(0);
+    }
+
+    @Test
+    public void executorRestartsSameAsSequential() {
+        double[] points = points(4, 300, 2, 6, 9, 20);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (long seed = 0; seed < 10; seed++) {
+                CyclicKMeans.Result sequential = kMeans(4, seed).cluster(points, 8);
+                CyclicKMeans.Result parallel = kMeans(4, seed).cluster(points, 8, executor);
+
+                assertThat(parallel.getCenters()).isEqualTo(sequential.getCenters());
+                assertThat(parallel.getAssignments()).isEqualTo(sequential.getAssignments());
+                assertThat(parallel.getInertia()).isEqualTo(sequential.getInertia());
+                assertThat(sequential.getInertia()).isLessThanOrEqualTo(kMeans(4, seed).cluster(points).getInertia());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void boundsAssignLikeBruteForce() {
+        double[] cycles = new double[]{ 24, 1000 };
+        KMeansPlusPlusClusterer.CyclicEuclideanDistance distance = new KMeansPlusPlusClusterer.CyclicEuclideanDistance(cycles);
+        int compared = 0;
+        for (long seed = 0; seed < 300; seed++) {
+            Random random = new Random(seed);
+            int n = 20 + random.nextInt(400);
+            int k = 2 + random.nextInt(5);
+            double[] points = new double[n * 2];
+            for (int i = 0; i < n; i++) {
+                points[i * 2] = CyclicDoubleKt.normalize((random.nextBoolean() ? 7 : 23) + random.nextGaussian() * 2, 24);
+                points[i * 2 + 1] = 7 + random.nextGaussian();
+            }
+            double[] initialCenters = new double[k * 2];
+            for (int c = 0; c < k; c++) {
+                System.arraycopy(points, random.nextInt(n) * 2, initialCenters, c * 2, 2);
+            }
+
+            //Plain Lloyd's iterations, computing all the distances, from the same centers
+            double[] centers = initialCenters.clone();
+            int[] assignments = assignBruteForce(points, centers, distance);
+            boolean emptyCluster = false;
+            for (int iteration = 0; iteration < 100 && !emptyCluster; iteration++) {
+                for (int c = 0; c < k; c++) {
+                    for (int d = 0; d < 2; d++) {
+                        double[] projection = new double[n];
+                        int size = 0;
+                        for (int i = 0; i < n; i++) {
+                            if (assignments[i] == c) {
+                                projection[size++] = points[i * 2 + d];
+                            }
+                        }
+                        emptyCluster |= size == 0;
+                        centers[c * 2 + d] = CyclicDoubleKt.pairwiseCenter(Arrays.copyOf(projection, size), cycles[d]);
+                    }
+                }
+                int[] next = assignBruteForce(points, centers, distance);
+                boolean changed = !Arrays.equals(next, assignments);
+                assignments = next;
+                if (!changed) {
+                    break;
+                }
+            }
+            if (emptyCluster) {
+                //The bounds are not involved, the cluster gets a random point
+                continue;
+            }
+
+            CyclicKMeans.Result result = new CyclicKMeans(k, 100, cycles).cluster(points, initialCenters);
+            assertThat(result.getAssignments()).as("seed %d", seed).isEqualTo(assignments);
+            assertThat(result.getCenters()).as("seed %d", seed).isEqualTo(centers);
+            compared++;
+        }
+        assertThat(compared).isGreaterThan(200);
+    }
+
+    private static CyclicKMeans kMeans(int k, long seed) {
+        JDKRandomGenerator random = new JDKRandomGenerator();
+        random.setSeed(seed);
+        return new CyclicKMeans(k, 100, CYCLES, random);
+    }
+
+    private static int[] assignBruteForce(double[] points, double[] centers,
+                                          KMeansPlusPlusClusterer.CyclicEuclideanDistance distance) {
+        int[] assignments = new int[points.length / 2];
+        for (int i = 0; i < assignments.length; i++) {
+            double[] point = Arrays.copyOfRange(points, i * 2, i * 2 + 2);
+            double minDistance = Double.MAX_VALUE;
+            for (int c = 0; c < centers.length / 2; c++) {
+                double d = distance.compute(point, Arrays.copyOfRange(centers, c * 2, c * 2 + 2));
+                if (d < minDistance) {
+                    minDistance = d;
+                    assignments[i] = c;
+                }
+            }
+        }
+        return assignments;
+    }
+
+    /**
+     * @return hours around the given centers (taking turns), with the standard deviation of 20 minutes
+     */
+    private static double[] points(long seed, int perCenter, double... centers) {
+        Random random = new Random(seed);
+        double[] points = new double[perCenter * centers.length];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = CyclicDoubleKt.normalize(centers[i % centers.length] + random.nextGaussian() / 3, 24);
+        }
+        return points;
+    }
+}
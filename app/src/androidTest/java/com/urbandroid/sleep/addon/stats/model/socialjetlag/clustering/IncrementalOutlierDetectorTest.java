@@ -0,0 +1,169 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag.clustering;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.urbandroid.sleep.addon.stats.model.socialjetlag.ChronoRecord;
+import com.urbandroid.sleep.addon.stats.model.socialjetlag.ChronoRecords;
+import com.urbandroid.util.ZoneOffsets;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+public class IncrementalOutlierDetectorTest {
+
+    private static final long HOUR = 3600 * 1000L;
+    private static final long DAY = 24 * HOUR;
+    private static final long START = 1500000000000L - 1500000000000L % DAY;
+
+    @Test
+    public void sameAsBatchForHistory() {
+        for (long seed = 1; seed <= 5; seed++) {
+            //The wake-up hours drift across midnight, so the mean moves past the opposite of some of them
+            List<ChronoRecord> records = nights(seed, 400, 21, 6);
+            IncrementalOutlierDetector detector = new IncrementalOutlierDetector(new ChronoRecords(records.subList(0, 20)));
+            for (int size = 21; size <= records.size(); size++) {
+                detector.add(records.get(size - 1));
+                if (size % 37 != 0 && size != records.size()) {
+                    continue;
+                }
+                List<ChronoRecord> history = records.subList(0, size);
+                BitSet outliers = ClusteredChronoRecords.findOutliers(new ChronoRecords(history));
+                assertThat(detector.size()).isEqualTo(size);
+                for (int i = 0; i < size; i++) {
+                    assertThat(detector.isOutlier(history.get(i))).as("seed %d size %d record %d", seed, size, i)
+                            .isEqualTo(outliers.get(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void classifyNewNight() {
+        List<ChronoRecord> history = nights(6, 200, 7, 0);
+        IncrementalOutlierDetector detector = new IncrementalOutlierDetector(new ChronoRecords(history));
+        long day = START + 300 * DAY;
+
+        assertThat(detector.isOutlier(night(day, 7, 7.5))).isFalse();
+        assertThat(detector.isOutlier(night(day, 7, 15))).isTrue();
+        assertThat(detector.isOutlier(night(day, 19, 7.5))).isTrue();
+
+        //Once the late nights are the new normal, they are core too
+        for (int i = 0; i < 400; i++) {
+            detector.add(night(day + i * DAY, 19 + (i % 5) * 0.1, 7 + (i % 3) * 0.2));
+        }
+        assertThat(detector.isOutlier(night(day + 400 * DAY, 19, 7.5))).isFalse();
+    }
+
+    @Test
+    public void emptyHistoryHasNoOutliers() {
+        IncrementalOutlierDetector detector = new IncrementalOutlierDetector();
+        assertThat(detector.isOutlier(night(START, 7, 7.5))).isFalse();
+        detector.add(night(START, 7, 7.5));
+        assertThat(detector.size()).isEqualTo(1);
+        assertThat(detector.isOutlier(night(START + DAY, 19, 15))).isFalse();
+    }
+
+    @Test
+    public void treeSameAsSortedArray() {
+        Random random = new Random(7);
+        OrderStatisticTree tree = new OrderStatisticTree();
+        List<Double> sorted = new ArrayList<>();
+        for (int round = 0; round < 3000; round++) {
+            //Few distinct values, so there are plenty of duplicates and zero gaps
+            double value = random.nextInt(200) / 8.0;
+            if (sorted.isEmpty() || random.nextInt(3) > 0) {
+                int index = tree.insert(value);
+                assertThat(index).isEqualTo(upperBound(sorted, value));
+                sorted.add(index, value);
+            } else {
+                boolean present = sorted.remove(value);
+                assertThat(tree.remove(value)).isEqualTo(present);
+            }
+            if (round % 100 != 0 || sorted.isEmpty()) {
+                continue;
+            }
+            int size = sorted.size();
+            assertThat(tree.size()).isEqualTo(size);
+            assertThat(tree.countAtMost(value)).isEqualTo(upperBound(sorted, value));
+            for (int k = 0; k < size; k++) {
+                assertThat(tree.select(k)).isEqualTo(sorted.get(k));
+                assertThat(tree.gapAt(k)).isEqualTo(k + 1 < size ? sorted.get(k + 1) - sorted.get(k) : Double.NEGATIVE_INFINITY);
+            }
+            double threshold = random.nextInt(4) / 8.0;
+            int index = random.nextInt(size + 1);
+            int last = -1;
+            for (int k = 0; k < index && k + 1 < size; k++) {
+                if (sorted.get(k + 1) - sorted.get(k) > threshold) {
+                    last = k;
+                }
+            }
+            int first = -1;
+            for (int k = size - 2; k >= index; k--) {
+                if (sorted.get(k + 1) - sorted.get(k) > threshold) {
+                    first = k;
+                }
+            }
+            assertThat(tree.lastGapAbove(index, threshold)).isEqualTo(last);
+            assertThat(tree.firstGapAbove(index, threshold)).isEqualTo(first);
+
+            double[] values = new double[size];
+            for (int k = 0; k < size; k++) {
+                values[k] = sorted.get(k);
+            }
+            double p = random.nextDouble();
+            assertThat(tree.percentile(p)).isEqualTo(CoreAndOutliers.percentile(values, p));
+        }
+    }
+
+    private static int upperBound(List<Double> sorted, double value) {
+        int count = 0;
+        while (count < sorted.size() && sorted.get(count) <= value) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Random nights with the wake-up hour drifting from the first to the last given hour, and an occasional outlier.
+     */
+    private static List<ChronoRecord> nights(long seed, int days, double firstWakeUp, double lastWakeUp) {
+        Random random = new Random(seed);
+        double drift = ((lastWakeUp - firstWakeUp + 36) % 24 - 12) / days;
+        List<ChronoRecord> records = new ArrayList<>();
+        for (int i = 0; i < days; i++) {
+            double wakeUp = firstWakeUp + i * drift + random.nextGaussian() * 0.5;
+            double length = 7 + random.nextGaussian() * 0.5;
+            if (random.nextInt(25) == 0) {
+                wakeUp += 6 + random.nextInt(6);
+            }
+            if (random.nextInt(25) == 0) {
+                length = random.nextBoolean() ? 2 + random.nextDouble() : 12 + random.nextDouble();
+            }
+            records.add(night(START + i * DAY, wakeUp, length));
+        }
+        //A late outlier can wake up after the next night, ChronoRecords are ordered by the wake-up time
+        Collections.sort(records, new Comparator<ChronoRecord>() {
+            @Override
+            public int compare(ChronoRecord a, ChronoRecord b) {
+                return a.getTo().compareTo(b.getTo());
+            }
+        });
+        return records;
+    }
+
+    private static ChronoRecord night(long day, double wakeUp, double length) {
+        long to = day + (long) (wakeUp * HOUR);
+        long from = to - (long) (length * HOUR);
+        return new ChronoRecord(new Date(from), new Date(to),
+                ZoneOffsets.UTC.getHourOfDay(from), ZoneOffsets.UTC.getHourOfDay(to), (float) length,
+                TimeZone.getTimeZone("UTC"));
+    }
+}
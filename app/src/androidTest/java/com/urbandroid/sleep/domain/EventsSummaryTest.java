@@ -0,0 +1,90 @@
+package com.urbandroid.sleep.domain;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+public class EventsSummaryTest {
+
+    private static final long START = 1500000000000L;
+    private static final long HOUR = 3600 * 1000L;
+
+    private static final EventLabel[] LABELS = new EventLabel[]{
+            EventLabel.ALARM_LATEST, EventLabel.ALARM_STARTED, EventLabel.ALARM_SNOOZE, EventLabel.AWAKE_START };
+
+    @Test
+    public void sameAsEventsUtil() {
+        Random random = new Random(13);
+        for (int round = 0; round < 2000; round++) {
+            Events events = new Events();
+            int size = random.nextInt(8);
+            for (int i = 0; i < size; i++) {
+                events.addEvent(START + random.nextInt(2 * (int) HOUR) - HOUR, LABELS[random.nextInt(LABELS.length)], 0f);
+            }
+            long toTime = START + HOUR;
+
+            EventsSummary summary = events.getSummary();
+            List<Event> copied = events.getCopiedEvents();
+
+            for (EventLabel label : LABELS) {
+                List<IEvent> labeled = EventsUtil.getEvents(copied, label);
+                assertThat(summary.getCount(label)).isEqualTo(labeled.size());
+                assertThat(summary.hasLabel(label)).isEqualTo(events.hasLabel(label));
+                if (labeled.isEmpty()) {
+                    assertThat(summary.getFirstTimestamp(label)).isEqualTo(-1);
+                    assertThat(summary.getEarliestTimestamp(label)).isEqualTo(-1);
+                } else {
+                    assertThat(summary.getFirstTimestamp(label)).isEqualTo(labeled.get(0).getTimestamp());
+                    assertThat(summary.getLastTimestamp(label)).isEqualTo(labeled.get(labeled.size() - 1).getTimestamp());
+                    assertThat(summary.getEarliestTimestamp(label)).isEqualTo(sorted(labeled).get(0).getTimestamp());
+                }
+            }
+            assertThat(summary.getSmartWakeupMinutes()).isEqualTo(smartWakeupMinutes(copied));
+            assertThat(summary.getSnoozeMinutes(toTime)).isEqualTo(snoozeMinutes(events, toTime));
+        }
+    }
+
+    /**
+     * The previous computation of the smart wake up minutes of a StatRecord.
+     */
+    private static int smartWakeupMinutes(List<Event> events) {
+        List<IEvent> latest = EventsUtil.getEvents(events, EventLabel.ALARM_LATEST);
+        List<IEvent> started = EventsUtil.getEvents(events, EventLabel.ALARM_STARTED);
+        if (latest.size() > 0 && started.size() > 0) {
+            int beforeAlarmMin = (int) (latest.get(0).getTimestamp() - started.get(0).getTimestamp()) / 60000;
+            if (beforeAlarmMin > 0) {
+                return beforeAlarmMin;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The previous SleepRecord.getSnoozeTime().
+     */
+    private static int snoozeMinutes(Events events, long toTime) {
+        if (!events.hasLabel(EventLabel.ALARM_STARTED)) {
+            return -1;
+        }
+        List<IEvent> snoozes = sorted(EventsUtil.getEvents(events.getCopiedEvents(), EventLabel.ALARM_SNOOZE));
+        if (snoozes.size() > 0) {
+            return (int) (toTime - snoozes.get(0).getTimestamp()) / 60000;
+        }
+        return 0;
+    }
+
+    private static List<IEvent> sorted(List<IEvent> events) {
+        Collections.sort(events, new Comparator<IEvent>() {
+            @Override
+            public int compare(IEvent e1, IEvent e2) {
+                return Long.valueOf(e1.getTimestamp()).compareTo(Long.valueOf(e2.getTimestamp()));
+            }
+        });
+        return events;
+    }
+}
@@ -0,0 +1,81 @@
+package com.urbandroid.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.Calendar;
+import java.util.SimpleTimeZone;
+import java.util.TimeZone;
+
+public class ZoneOffsetsTest {
+
+    private static final int HOUR = 3600 * 1000;
+
+    //Summer time in Prague
+    private static final long JULY = Instant.parse("2018-07-01T12:00:00Z").toEpochMilli();
+
+    @Test
+    public void sharedByID() {
+        ZoneOffsets prague = ZoneOffsets.of("Europe/Prague");
+
+        assertThat(ZoneOffsets.of(TimeZone.getTimeZone("Europe/Prague"))).isSameAs(prague);
+        assertThat(prague.getOffset(JULY)).isEqualTo(2 * HOUR);
+    }
+
+    @Test
+    public void zoneWithOtherRulesIsNotShared() {
+        ZoneOffsets prague = ZoneOffsets.of("Europe/Prague");
+
+        //Same ID, but different rules
+        ZoneOffsets custom = ZoneOffsets.of(new SimpleTimeZone(5 * HOUR, "Europe/Prague"));
+        TimeZone modified = TimeZone.getTimeZone("Europe/Prague");
+        modified.setRawOffset(-3 * HOUR);
+        ZoneOffsets modifiedOffsets = ZoneOffsets.of(modified);
+
+        assertThat(custom).isNotSameAs(prague);
+        assertThat(custom.getOffset(JULY)).isEqualTo(5 * HOUR);
+        assertThat(modifiedOffsets).isNotSameAs(prague);
+        assertThat(modifiedOffsets.getOffset(JULY)).isEqualTo(modified.getOffset(JULY));
+
+        //The shared offsets are not affected
+        assertThat(ZoneOffsets.of("Europe/Prague")).isSameAs(prague);
+        assertThat(ZoneOffsets.of(TimeZone.getTimeZone("Europe/Prague")).getOffset(JULY)).isEqualTo(2 * HOUR);
+    }
+
+    @Test
+    public void sameAsCalendarAcrossDstTransitions() {
+        long from = Instant.parse("2017-01-01T00:00:00Z").toEpochMilli();
+        long to = Instant.parse("2019-01-01T00:00:00Z").toEpochMilli();
+        //Including a half-hour DST and a southern hemisphere zone
+        for (String id : new String[]{ "Europe/Prague", "America/New_York", "Australia/Lord_Howe", "America/Sao_Paulo" }) {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            ZoneOffsets offsets = new ZoneOffsets(zone);
+            Calendar calendar = Calendar.getInstance(zone);
+            int transitions = 0;
+            //Every 7 minutes and 13 seconds, so all the times of the day are hit
+            for (long time = from; time < to; time += 433 * 1000L) {
+                if (zone.getOffset(time) != zone.getOffset(time - 433 * 1000L)) {
+                    transitions++;
+                    //Right at the transition
+                    assertSameAsCalendar(offsets, calendar, time - 1);
+                    assertSameAsCalendar(offsets, calendar, time + 1);
+                }
+                assertSameAsCalendar(offsets, calendar, time);
+            }
+            assertThat(transitions).as(id).isEqualTo(4);
+        }
+    }
+
+    private static void assertSameAsCalendar(ZoneOffsets offsets, Calendar calendar, long time) {
+        calendar.setTimeInMillis(time);
+        float hour = calendar.get(Calendar.HOUR_OF_DAY) + calendar.get(Calendar.MINUTE) / 60f + calendar.get(Calendar.SECOND) / 3600f;
+        String description = offsets.getID() + " " + time;
+        assertThat(offsets.getOffset(time)).as(description).isEqualTo(calendar.getTimeZone().getOffset(time));
+        assertThat(offsets.getHourOfDay(time)).as(description).isEqualTo(hour);
+        assertThat(offsets.getMinuteOfDay(time)).as(description)
+                .isEqualTo(calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE));
+        assertThat(offsets.getDayOfWeek(time)).as(description).isEqualTo(calendar.get(Calendar.DAY_OF_WEEK));
+    }
+}
@@ -1,20 +1,16 @@
 package com.urbandroid.sleep.addon.stats.model;
 
 import com.urbandroid.common.logging.Logger;
-import com.urbandroid.sleep.domain.Event;
-import com.urbandroid.sleep.domain.EventLabel;
 import com.urbandroid.sleep.domain.Events;
-import com.urbandroid.sleep.domain.EventsUtil;
-import com.urbandroid.sleep.domain.IEvent;
+import com.urbandroid.sleep.domain.EventsSummary;
 import com.urbandroid.sleep.domain.SleepRecord;
 import com.urbandroid.sleep.domain.tag.Tag;
+import com.urbandroid.util.ZoneOffsets;
 
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 import java.util.TimeZone;
 
@@ -271,22 +267,15 @@ public class StatRecord implements IStatRecord {
         result.setFromDate(record.getFrom());
         result.setTimeZone(record.getTimeZone());
 
-        Calendar cal = getCalendar(record);
-
-        cal.setTime(record.getFrom());
-        double hour = cal.get(Calendar.HOUR_OF_DAY);
-        hour = hour + ((double)cal.get(Calendar.MINUTE) / 60);
-        result.setFromHour(hour);
-
-        cal.setTime(record.getTo());
-        hour = cal.get(Calendar.HOUR_OF_DAY);
-        hour = hour + ((double)cal.get(Calendar.MINUTE) / 60);
-        result.setToHour(hour);
+        ZoneOffsets zone = getZoneOffsets(record);
+        result.setFromHour(getHour(zone, record.getFrom()));
+        result.setToHour(getHour(zone, record.getTo()));
 
         result.setRating(record.getRating());
         result.setQuality(record.getQuality());
         result.setSnore(record.getSnore());
-        result.setSnooze(record.getSnoozeTime());
+        EventsSummary events = record.getEvents().getSummary();
+        result.setSnooze(events.getSnoozeMinutes(record.getToTime()));
 
         result.getTags().addAll(Tag.getTags(record.getComment()));
 
@@ -309,30 +298,31 @@ public class StatRecord implements IStatRecord {
         result.setCycles(record.getCycles());
         result.setNoiseLevel(record.getNoiseLevel());
 
-        List<Event> labels = record.getEvents().getCopiedEvents();
-        List<IEvent> alarmLatestEvents = EventsUtil.getEvents(labels, EventLabel.ALARM_LATEST);
-        List<IEvent> alarmStartedEvents = EventsUtil.getEvents(labels, EventLabel.ALARM_STARTED);
-        if (alarmLatestEvents.size() > 0 && alarmStartedEvents.size() > 0) {
-            int beforeAlarmMin = (int) (alarmLatestEvents.get(0).getTimestamp() - alarmStartedEvents.get(0).getTimestamp()) / 60000;
-            if (beforeAlarmMin > 0) {
-                result.setSmart(beforeAlarmMin);
-            }
+        int beforeAlarmMin = events.getSmartWakeupMinutes();
+        if (beforeAlarmMin > 0) {
+            result.setSmart(beforeAlarmMin);
         }
 
         return  result;
     }
 
 
-    private static Calendar getCalendar(com.urbandroid.sleep.domain.SleepRecord sleepRecord) {
-        Calendar cal = Calendar.getInstance();
+    private static ZoneOffsets getZoneOffsets(com.urbandroid.sleep.domain.SleepRecord sleepRecord) {
         if ((sleepRecord.getTimezone() != null) && (!sleepRecord.getTimezone().equals(""))) {
             try {
-                cal.setTimeZone(TimeZone.getTimeZone(sleepRecord.getTimezone()));
+                return ZoneOffsets.of(sleepRecord.getTimezone());
             } catch (Exception e) {
                 Logger.logSevere(e);
             }
         }
-        return cal;
+        return ZoneOffsets.of(TimeZone.getDefault());
+    }
+
+    //Fractional hours with minute precision, e.g. 22:30 is 22.5
+    private static double getHour(ZoneOffsets zone, Date date) {
+        int minuteOfDay = zone.getMinuteOfDay(date.getTime());
+        double hour = minuteOfDay / 60;
+        return hour + ((double) (minuteOfDay % 60) / 60);
     }
 }
 
@@ -0,0 +1,201 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag;
+
+import com.urbandroid.util.ZoneOffsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Column-oriented storage behind ChronoRecords.
+ *
+ * The records are sorted by the end of sleep (ChronoRecord.to), which identifies them,
+ * and every value of a record is kept in its own primitive array. The ChronoRecord objects themselves
+ * are not kept, a record takes about 40 bytes, and is materialized by toRecord() only when asked for.
+ * The zones are stored just once, each record keeps only the index of its zone.
+ * The columns are built once and never modified, so they can be handed out without copying.
+ */
+class ChronoColumns {
+
+    static final ChronoColumns EMPTY = new ChronoColumns(new ChronoRecord[0]);
+
+    final long[] fromTimes;
+    final long[] toTimes;
+
+    final float[] fromHours;
+    final float[] toHours;
+    final float[] midSleeps;
+    final float[] midSleepsUTC;
+    final float[] lengths;
+
+    //Distinct zones of the records, and the index into them for every record
+    final TimeZone[] zones;
+    final ZoneOffsets[] zoneOffsets;
+    final int[] zoneIndexes;
+
+    /**
+     * @param sorted records sorted by ChronoRecord.to, without duplicates
+     */
+    private ChronoColumns(ChronoRecord[] sorted) {
+        int size = sorted.length;
+        fromTimes = new long[size];
+        toTimes = new long[size];
+        fromHours = new float[size];
+        toHours = new float[size];
+        midSleeps = new float[size];
+        midSleepsUTC = new float[size];
+        lengths = new float[size];
+        zoneIndexes = new int[size];
+        List<TimeZone> distinctZones = new ArrayList<>();
+        for(int i=0; i<size; i++) {
+            ChronoRecord record = sorted[i];
+            fromTimes[i] = record.getFrom().getTime();
+            toTimes[i] = record.getTo().getTime();
+            fromHours[i] = record.getFromHour();
+            toHours[i] = record.getToHour();
+            midSleeps[i] = record.getMidSleep();
+            midSleepsUTC[i] = record.getMidSleepUTC();
+            lengths[i] = record.getLength();
+            //Users rarely have more than a few zones, a linear search is fine
+            int zoneIndex = distinctZones.indexOf(record.getTimeZone());
+            if (zoneIndex < 0) {
+                zoneIndex = distinctZones.size();
+                distinctZones.add(record.getTimeZone());
+            }
+            zoneIndexes[i] = zoneIndex;
+        }
+        zones = distinctZones.toArray(new TimeZone[distinctZones.size()]);
+        zoneOffsets = new ZoneOffsets[zones.length];
+        for(int i=0; i<zones.length; i++) {
+            zoneOffsets[i] = ZoneOffsets.of(zones[i]);
+        }
+    }
+
+    /**
+     * Columns of the given values, sorted by the to times without duplicates. The arrays are not copied.
+     * The mid sleeps are computed like in ChronoRecord.
+     */
+    ChronoColumns(long[] fromTimes, long[] toTimes, float[] fromHours, float[] toHours, float[] lengths,
+                  TimeZone[] zones, int[] zoneIndexes) {
+        int size = toTimes.length;
+        this.fromTimes = fromTimes;
+        this.toTimes = toTimes;
+        this.fromHours = fromHours;
+        this.toHours = toHours;
+        this.lengths = lengths;
+        this.zones = zones;
+        this.zoneIndexes = zoneIndexes;
+        midSleeps = new float[size];
+        midSleepsUTC = new float[size];
+        for(int i=0; i<size; i++) {
+            midSleeps[i] = ChronoRecordKt.getMidSleep(fromHours[i], toHours[i]);
+            midSleepsUTC[i] = ChronoRecordKt.getMidSleep(
+                    ZoneOffsets.UTC.getHourOfDay(fromTimes[i]), ZoneOffsets.UTC.getHourOfDay(toTimes[i]));
+        }
+        zoneOffsets = new ZoneOffsets[zones.length];
+        for(int i=0; i<zones.length; i++) {
+            zoneOffsets[i] = ZoneOffsets.of(zones[i]);
+        }
+    }
+
+    /**
+     * Columns of the records of the source at the given indexes, sharing its zones.
+     */
+    private ChronoColumns(ChronoColumns source, int[] indexes) {
+        int size = indexes.length;
+        fromTimes = new long[size];
+        toTimes = new long[size];
+        fromHours = new float[size];
+        toHours = new float[size];
+        midSleeps = new float[size];
+        midSleepsUTC = new float[size];
+        lengths = new float[size];
+        zoneIndexes = new int[size];
+        for(int i=0; i<size; i++) {
+            int index = indexes[i];
+            fromTimes[i] = source.fromTimes[index];
+            toTimes[i] = source.toTimes[index];
+            fromHours[i] = source.fromHours[index];
+            toHours[i] = source.toHours[index];
+            midSleeps[i] = source.midSleeps[index];
+            midSleepsUTC[i] = source.midSleepsUTC[index];
+            lengths[i] = source.lengths[index];
+            zoneIndexes[i] = source.zoneIndexes[index];
+        }
+        zones = source.zones;
+        zoneOffsets = source.zoneOffsets;
+    }
+
+    /**
+     * Records with the same end of sleep are considered the same record,
+     * and the last one of them wins (like in a map).
+     */
+    static ChronoColumns of(Collection<? extends ChronoRecord> recs) {
+        if (recs.isEmpty()) {
+            return EMPTY;
+        }
+
+        ChronoRecord[] sorted = recs.toArray(new ChronoRecord[recs.size()]);
+        //Stable sort, so the order of duplicates is preserved.
+        Arrays.sort(sorted, new Comparator<ChronoRecord>() {
+            @Override
+            public int compare(ChronoRecord r1, ChronoRecord r2) {
+                return r1.getTo().compareTo(r2.getTo());
+            }
+        });
+
+        int size = 0;
+        for(int i=0; i<sorted.length; i++) {
+            if (i+1 < sorted.length && sorted[i].getTo().equals(sorted[i+1].getTo())) {
+                continue;
+            }
+            sorted[size++] = sorted[i];
+        }
+
+        return new ChronoColumns(size == sorted.length ? sorted : Arrays.copyOf(sorted, size));
+    }
+
+    /**
+     * @param indexes sorted indexes of the records to keep
+     */
+    ChronoColumns select(int[] indexes) {
+        return indexes.length == 0 ? EMPTY : new ChronoColumns(this, indexes);
+    }
+
+    int size() {
+        return toTimes.length;
+    }
+
+    /**
+     * @return index of the first record that ends at or after the given time
+     */
+    int indexOf(long time) {
+        int index = Arrays.binarySearch(toTimes, time);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * @return a new ChronoRecord equal to the one the columns were built from
+     */
+    ChronoRecord toRecord(int index) {
+        return new ChronoRecord(
+                new Date(fromTimes[index]), new Date(toTimes[index]),
+                fromHours[index], toHours[index],
+                lengths[index], zones[zoneIndexes[index]]);
+    }
+
+    TimeZone getTimeZone(int index) {
+        return zones[zoneIndexes[index]];
+    }
+
+    /**
+     * @return the same as toRecord(index).getEndDayOfWeek()
+     */
+    int getEndDayOfWeek(int index) {
+        return zoneOffsets[zoneIndexes[index]].getDayOfWeek(toTimes[index]);
+    }
+}
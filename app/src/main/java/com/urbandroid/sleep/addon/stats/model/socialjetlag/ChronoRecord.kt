@@ -1,23 +1,29 @@
 package com.urbandroid.sleep.addon.stats.model.socialjetlag
 
 import com.urbandroid.sleep.addon.stats.model.StatRecord
+import com.urbandroid.util.ZoneOffsets
 import java.util.*
 
 class ChronoRecord @JvmOverloads constructor(
         val from: Date, val to: Date,
         //Fractional hours (e.g. 22:30 is 22.5) in the user's local time.
-        val fromHour: Float, val toHour: Float,
+        override val fromHour: Float, override val toHour: Float,
         //Net sleep time in hours (to - from - awake_pauses).
-        val length: Float, val timeZone: TimeZone = TimeZone.getDefault())
+        override val length: Float, override val timeZone: TimeZone = TimeZone.getDefault()) : ChronoRecordValues
 
 {
     //Fractional hours (e.g. 22:30 is 22.5) in the user's local time.
-    val fromHourUTC = getHourUTC(from)
-    val toHourUTC = getHourUTC(to)
+    override val fromHourUTC = getHourUTC(from)
+    override val toHourUTC = getHourUTC(to)
 
     //Midpoint between from and to
-    val midSleep = getMidSleep(fromHour, toHour)
-    val midSleepUTC = getMidSleep(fromHourUTC, toHourUTC)
+    override val midSleep = getMidSleep(fromHour, toHour)
+    override val midSleepUTC = getMidSleep(fromHourUTC, toHourUTC)
+
+    override val fromTime: Long
+        get() = from.time
+    override val toTime: Long
+        get() = to.time
 
     init {
         if (from.time > to.time) {
@@ -26,7 +32,7 @@ class ChronoRecord @JvmOverloads constructor(
         //Max sleep length is 20 hours. It needs to be less than one day
         //in order to midpoint calculation to work, and the four hours
         //are a buffer for DST time change, or timezone change, etc.
-        if (to.time - from.time > 1000 * 60 * 60 * 20) {
+        if (to.time - from.time > MAX_LENGTH_MS) {
             throw IllegalArgumentException("$to - $from > one day")
         }
         if (fromHour < 0 || fromHour >= 24)  {
@@ -37,24 +43,14 @@ class ChronoRecord @JvmOverloads constructor(
         }
     }
 
-    private fun getHourUTC(d: Date): Float {
-        val calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC")).apply { time = d }
-        val hour = calendar.get(Calendar.HOUR_OF_DAY).toFloat()
-        val minute = calendar.get(Calendar.MINUTE).toFloat()
-        val second = calendar.get(Calendar.SECOND).toFloat()
-        return hour + minute/60f + second/3600f
-    }
+    private fun getHourUTC(d: Date): Float = ZoneOffsets.UTC.getHourOfDay(d.time)
 
-    private fun getMidSleep(fromHour: Float, toHour: Float): Float = if (fromHour <= toHour) {
-        (fromHour + toHour) / 2f
-    } else {
-        val midPoint = (fromHour + toHour) / 2f + 12f
-        if (midPoint < 24f) midPoint else midPoint - 24f
-    }
+    //Resolved by the first getEndDayOfWeek(), racing threads just resolve the same offsets
+    private var zoneOffsets: ZoneOffsets? = null
 
-    fun getEndDayOfWeek() = Calendar.getInstance(timeZone).run {
-        time = to
-        get(Calendar.DAY_OF_WEEK)
+    override fun getEndDayOfWeek(): Int {
+        val offsets = zoneOffsets ?: ZoneOffsets.of(timeZone).also { zoneOffsets = it }
+        return offsets.getDayOfWeek(to.time)
     }
 
     //Indeed, we are dealing with records from a single user, so "to" fully identifies the record.
@@ -65,6 +61,19 @@ class ChronoRecord @JvmOverloads constructor(
     override fun toString(): String {
         return "ChronoRecord(from=$from, to=$to, length=$length, midSleep=$midSleep)"
     }
+
+    companion object {
+        //Max sleep length, see init
+        const val MAX_LENGTH_MS = 1000 * 60 * 60 * 20
+    }
+}
+
+//Midpoint between fromHour and toHour, over midnight if toHour is before fromHour
+fun getMidSleep(fromHour: Float, toHour: Float): Float = if (fromHour <= toHour) {
+    (fromHour + toHour) / 2f
+} else {
+    val midPoint = (fromHour + toHour) / 2f + 12f
+    if (midPoint < 24f) midPoint else midPoint - 24f
 }
 
 fun StatRecord.toChronoRecord(): ChronoRecord? {
@@ -0,0 +1,24 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag
+
+import java.util.*
+
+/**
+ * Getters of a sleep record, shared by ChronoRecord and the flyweight ChronoRecords.Cursor,
+ * so the code reading the records works with both, without creating ChronoRecord objects.
+ */
+interface ChronoRecordValues {
+    //Milliseconds, the same as from.time and to.time of ChronoRecord
+    val fromTime: Long
+    val toTime: Long
+
+    val fromHour: Float
+    val toHour: Float
+    val fromHourUTC: Float
+    val toHourUTC: Float
+    val midSleep: Float
+    val midSleepUTC: Float
+    val length: Float
+    val timeZone: TimeZone
+
+    fun getEndDayOfWeek(): Int
+}
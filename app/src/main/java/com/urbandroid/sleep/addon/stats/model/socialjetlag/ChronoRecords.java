@@ -1,19 +1,48 @@
 package com.urbandroid.sleep.addon.stats.model.socialjetlag;
 
+import com.urbandroid.util.ZoneOffsets;
+
 import org.apache.commons.math3.util.Pair;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TimeZone;
 import java.util.TreeMap;
 
+/**
+ * Sorted records of a single user.
+ *
+ * The records live in ChronoColumns, which are shared between a ChronoRecords and everything
+ * derived from it by narrow(), split(), filterByDayOfWeek() etc. A derived ChronoRecords is just
+ * an index range over the shared columns, optionally restricted by a bitmask, so deriving it
+ * does not copy the records.
+ *
+ * The columns do not keep ChronoRecord objects. The methods returning ChronoRecords create them on the fly,
+ * cursor() reads the records without creating any objects, and so do the methods passing the records
+ * to callbacks (as ChronoRecordValues).
+ */
 public class ChronoRecords {
 
     private final Date from, to;
-    private final TreeMap<Date,ChronoRecord> records;
+
+    private final ChronoColumns columns;
+
+    //The selected records are columns[start, end), and only those with a bit set in mask (if not null).
+    private final int start, end;
+    private final BitSet mask;
+    private final int size;
+
+    //Columns of the selected records only, created lazily for views that do not cover the whole columns.
+    private volatile ChronoColumns compacted;
+
+    //Created lazily by getContentStamp()
+    private volatile ContentStamp contentStamp;
 
     public ChronoRecords() {
         this(Collections.<ChronoRecord>emptyList());
@@ -25,34 +54,38 @@ public class ChronoRecords {
 
     public ChronoRecords(Collection<? extends ChronoRecord> recs, Date from, Date to) {
 
-        records = new TreeMap<>();
-        for(ChronoRecord rec : recs) {
-            records.put(rec.getTo(), rec);
-        }
+        columns = ChronoColumns.of(recs);
+        start = 0;
+        end = columns.size();
+        mask = null;
+        size = columns.size();
+
+        long[] toTimes = columns.toTimes;
+        boolean isEmpty = toTimes.length == 0;
 
         if (from == null) {
-            if (records.isEmpty()) {
+            if (isEmpty) {
                 this.from = new Date();
             } else {
-                this.from = records.firstKey();
+                this.from = new Date(toTimes[0]);
             }
         } else {
-            if (!records.isEmpty() && records.firstKey().before(from)) {
-                throw new IllegalArgumentException(records.firstKey() + " " + from);
+            if (!isEmpty && toTimes[0] < from.getTime()) {
+                throw new IllegalArgumentException(new Date(toTimes[0]) + " " + from);
             } else {
                 this.from = from;
             }
         }
 
         if (to == null) {
-            if (records.isEmpty()) {
+            if (isEmpty) {
                 this.to = this.from;
             } else {
-                this.to = records.lastKey();
+                this.to = new Date(toTimes[toTimes.length-1]);
             }
         } else {
-            if (!records.isEmpty() && records.lastKey().after(to)) {
-                throw new IllegalArgumentException(records.lastKey()+" "+to);
+            if (!isEmpty && toTimes[toTimes.length-1] > to.getTime()) {
+                throw new IllegalArgumentException(new Date(toTimes[toTimes.length-1])+" "+to);
             } else {
                 this.to = to;
             }
@@ -63,8 +96,45 @@ public class ChronoRecords {
         }
     }
 
+    /**
+     * All the records of the given columns.
+     */
+    ChronoRecords(ChronoColumns columns) {
+        this(columns, 0, columns.size(), null, null, null);
+    }
+
+    /**
+     * View over the given columns. The records in the view are guaranteed to be sorted and within the columns,
+     * so nothing needs to be validated or copied.
+     *
+     * @param from if null, the first selected record is used (or now, if there is none)
+     * @param to if null, the last selected record is used (or from, if there is none)
+     */
+    private ChronoRecords(ChronoColumns columns, int start, int end, BitSet mask, Date from, Date to) {
+        this.columns = columns;
+        this.start = start;
+        this.end = Math.max(start, end);
+        this.mask = mask;
+        this.size = mask == null ? this.end - start : mask.get(start, this.end).cardinality();
+
+        if (from == null) {
+            this.from = size == 0 ? new Date() : getFirstRecordTo();
+        } else {
+            this.from = from;
+        }
+        if (to == null) {
+            this.to = size == 0 ? this.from : getLastRecordTo();
+        } else {
+            this.to = to;
+        }
+
+        if (this.to.before(this.from)) {
+            throw new IllegalArgumentException(this.from+" "+this.to);
+        }
+    }
+
     public int size() {
-        return records.size();
+        return size;
     }
 
     public Date getFrom() {
@@ -75,84 +145,106 @@ public class ChronoRecords {
         return to;
     }
 
-    public float[] getFromHours() {
-        return toFloats(new RecordToFloat() {
-            @Override
-            public float apply(ChronoRecord record) {
-                return record.getFromHour();
-            }
-        });
+    /*
+     * The indexed getters below read the i-th record (0 <= i < size()) without copying anything,
+     * the copy methods return the whole columns as new arrays. The package reads the shared columns
+     * through compact().
+     */
+
+    public float getFromHour(int i) {
+        return indexedColumns().fromHours[columnIndex(i)];
     }
 
-    public float[] getToHours() {
-        return toFloats(new RecordToFloat() {
-            @Override
-            public float apply(ChronoRecord record) {
-                return record.getToHour();
-            }
-        });
+    public float getToHour(int i) {
+        return indexedColumns().toHours[columnIndex(i)];
     }
 
-    public float[] getMidSleeps() {
-        return toFloats(new RecordToFloat() {
-            @Override
-            public float apply(ChronoRecord record) {
-                return record.getMidSleep();
-            }
-        });
+    public float getMidSleep(int i) {
+        return indexedColumns().midSleeps[columnIndex(i)];
     }
 
-    public float[] getMidSleepUTC() {
-        return toFloats(new RecordToFloat() {
-            @Override
-            public float apply(ChronoRecord record) {
-                return record.getMidSleepUTC();
-            }
-        });
+    public float getMidSleepUTC(int i) {
+        return indexedColumns().midSleepsUTC[columnIndex(i)];
     }
 
-    public float[] getLengths() {
-        return toFloats(new RecordToFloat() {
-            @Override
-            public float apply(ChronoRecord record) {
-                return record.getLength();
-            }
-        });
+    public float getLength(int i) {
+        return indexedColumns().lengths[columnIndex(i)];
+    }
+
+    /**
+     * @return end of sleep of the i-th record in milliseconds
+     */
+    public long getToTime(int i) {
+        return indexedColumns().toTimes[columnIndex(i)];
+    }
+
+    public float[] copyFromHours() {
+        return compact().fromHours.clone();
+    }
+
+    public float[] copyToHours() {
+        return compact().toHours.clone();
+    }
+
+    public float[] copyMidSleeps() {
+        return compact().midSleeps.clone();
+    }
+
+    public float[] copyMidSleepsUTC() {
+        return compact().midSleepsUTC.clone();
+    }
+
+    public float[] copyLengths() {
+        return compact().lengths.clone();
+    }
+
+    /**
+     * @return end of sleep of the records in milliseconds, sorted
+     */
+    public long[] copyToTimes() {
+        return compact().toTimes.clone();
     }
 
     public float[] toFloats(RecordToFloat converter) {
-        int size = records.size();
         float[] result = new float[size];
+        Cursor cursor = new Cursor();
         int i=0;
-        for(ChronoRecord record : records.values()) {
-            result[i++] = converter.apply(record);
+        for(int index = first(); index < end; index = next(index)) {
+            cursor.index = index;
+            result[i++] = converter.apply(cursor);
         }
         return result;
     }
 
     public Pair<ChronoRecords, ChronoRecords> split(RecordToBool predicate) {
-        List<ChronoRecord> trueList = new ArrayList<>();
-        List<ChronoRecord> falseList = new ArrayList<>();
-        for (ChronoRecord record : records.values()) {
-            if (predicate.apply(record)) {
-                trueList.add(record);
+        BitSet trueMask = new BitSet(end);
+        BitSet falseMask = new BitSet(end);
+        Cursor cursor = new Cursor();
+        for(int index = first(); index < end; index = next(index)) {
+            cursor.index = index;
+            if (predicate.apply(cursor)) {
+                trueMask.set(index);
             } else {
-                falseList.add(record);
+                falseMask.set(index);
             }
         }
-        return Pair.create(new ChronoRecords(trueList, from, to), new ChronoRecords(falseList, from, to));
+        return Pair.create(
+                new ChronoRecords(columns, start, end, trueMask, from, to),
+                new ChronoRecords(columns, start, end, falseMask, from, to));
     }
 
     public ChronoRecords narrow(Date from, Date to) {
-        return new ChronoRecords(records.subMap(from,to).values(), from, to);
+        int narrowStart = Math.max(start, columns.indexOf(from.getTime()));
+        int narrowEnd = Math.min(end, columns.indexOf(to.getTime()));
+        return new ChronoRecords(columns, narrowStart, narrowEnd, mask, from, to);
     }
 
     public List<ChronoRecords> splitByMonth(int fragmentLenghtMonths, int stepMonths) {
 
         List<ChronoRecords> result = new ArrayList<>();
 
-        Date start = records.firstKey();
-        Date end = new Date(records.lastKey().getTime() + 1);
+        Date start = getFirstRecordTo();
+        Date end = new Date(getLastRecordTo().getTime() + 1);
 
         Calendar c = Calendar.getInstance();
         c.setTime(start);
@@ -182,12 +274,12 @@ public class ChronoRecords {
     public List<ChronoRecords> splitByDays(int fragmentLenghtDays, int stepDays) {
 
         List<ChronoRecords> result = new ArrayList<>();
-        if (records.isEmpty()) {
+        if (size == 0) {
             return result;
         }
 
-        Date start = records.firstKey();
-        Date end = new Date(records.lastKey().getTime() + 1);
+        Date start = getFirstRecordTo();
+        Date end = new Date(getLastRecordTo().getTime() + 1);
 
         Calendar c = Calendar.getInstance();
         c.setTime(start);
@@ -213,30 +305,349 @@ public class ChronoRecords {
         return result;
     }
 
+    /**
+     * Slides a window over the records exactly like splitByDays does, but instead of building
+     * a new ChronoRecords for every fragment, it reports the records entering and leaving the window
+     * to the listener. Every record enters and leaves at most once, so the whole history is O(n).
+     */
+    public void slideByDays(int fragmentLenghtDays, int stepDays, WindowListener listener) {
+
+        if (size == 0) {
+            return;
+        }
+
+        long[] toTimes = columns.toTimes;
+
+        Date start = getFirstRecordTo();
+        Date end = new Date(getLastRecordTo().getTime() + 1);
+
+        Calendar c = Calendar.getInstance();
+        c.setTime(start);
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        c.set(Calendar.MINUTE, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+
+        //Passed to the listener, positioned at the record entering or leaving
+        Cursor cursor = new Cursor();
+
+        //The current window are the selected records in columns[first, last)
+        int first = first();
+        int last = first;
+
+        Date fragmentStart;
+        Date fragmentEnd;
+        do {
+            fragmentStart = c.getTime();
+
+            c.add(Calendar.DAY_OF_YEAR, fragmentLenghtDays);
+            fragmentEnd = c.getTime();
+
+            long startTime = fragmentStart.getTime();
+            long endTime = fragmentEnd.getTime();
+
+            for(; first < last && toTimes[first] < startTime; first = next(first)) {
+                cursor.index = first;
+                listener.leave(cursor);
+            }
+            if (first == last) {
+                //The window is empty, skip the records that fell into a gap between fragments.
+                for(; last < this.end && toTimes[last] < startTime; last = next(last));
+                first = last;
+            }
+            for(; last < this.end && toTimes[last] < endTime; last = next(last)) {
+                cursor.index = last;
+                listener.enter(cursor);
+            }
+
+            listener.windowComplete(fragmentStart, fragmentEnd);
+
+            c.add(Calendar.DAY_OF_YEAR, stepDays - fragmentLenghtDays);
+
+        } while (fragmentEnd.before(end));
+    }
+
+    /**
+     * @param positions sorted positions of the records to keep, in the order of getRecordsList()
+     * @return view of the records at the given positions
+     */
+    public ChronoRecords subset(int[] positions) {
+        BitSet subsetMask = new BitSet(end);
+        int position = 0;
+        int i = 0;
+        for(int index = first(); index < end && i < positions.length; index = next(index), position++) {
+            if (positions[i] == position) {
+                subsetMask.set(index);
+                i++;
+            }
+        }
+        if (i < positions.length) {
+            throw new IllegalArgumentException("Not a sorted position: " + positions[i]);
+        }
+        return new ChronoRecords(columns, start, end, subsetMask, null, null);
+    }
+
     /**
      * @param dayOfWeek a constant from java.util.Calendar, e.g. Calendar.FRIDAY
      * @return
      */
     public ChronoRecords filterByDayOfWeek(int dayOfWeek) {
-        List<ChronoRecord> result = new ArrayList<>();
-        for(ChronoRecord r: records.values()) {
-            if (r.getEndDayOfWeek() == dayOfWeek) {
-                result.add(r);
+        BitSet dayMask = new BitSet(end);
+        for(int index = first(); index < end; index = next(index)) {
+            if (columns.getEndDayOfWeek(index) == dayOfWeek) {
+                dayMask.set(index);
             }
         }
-        return new ChronoRecords(result);
+        return new ChronoRecords(columns, start, end, dayMask, null, null);
     }
 
     public TreeMap<Date, ChronoRecord> getRecords() {
-        return new TreeMap<>(records);
+        TreeMap<Date, ChronoRecord> result = new TreeMap<>();
+        for(int index = first(); index < end; index = next(index)) {
+            ChronoRecord record = columns.toRecord(index);
+            result.put(record.getTo(), record);
+        }
+        return result;
     }
 
     public List<ChronoRecord> getRecordsList() {
-        return new ArrayList<>(records.values());
+        List<ChronoRecord> result = new ArrayList<>(size);
+        for(int index = first(); index < end; index = next(index)) {
+            result.add(columns.toRecord(index));
+        }
+        return result;
     }
 
+    /**
+     * @return index of the first selected record in the columns, or end if there is none
+     */
+    private int first() {
+        return select(start);
+    }
+
+    /**
+     * @return index of the next selected record after the given index, or end if there is none
+     */
+    private int next(int index) {
+        return select(index + 1);
+    }
+
+    private int select(int index) {
+        if (mask != null) {
+            index = mask.nextSetBit(index);
+            if (index < 0) {
+                return end;
+            }
+        }
+        return Math.min(index, end);
+    }
+
+    private Date getFirstRecordTo() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return new Date(columns.toTimes[first()]);
+    }
+
+    private Date getLastRecordTo() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        int last = mask == null ? end - 1 : mask.previousSetBit(end - 1);
+        return new Date(columns.toTimes[last]);
+    }
+
+    /**
+     * The columns to read the i-th record from, at columnIndex(i). A range reads the shared columns directly,
+     * only a masked view needs them compacted.
+     */
+    private ChronoColumns indexedColumns() {
+        return mask == null ? columns : compact();
+    }
+
+    private int columnIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException(i + " of " + size);
+        }
+        return mask == null ? start + i : i;
+    }
+
+    /**
+     * @return columns of just the selected records, shared by all the callers, do not modify them
+     */
+    ChronoColumns compact() {
+        if (mask == null && start == 0 && end == columns.size()) {
+            return columns;
+        }
+        ChronoColumns result = compacted;
+        if (result == null) {
+            int[] selected = new int[size];
+            int i=0;
+            for(int index = first(); index < end; index = next(index)) {
+                selected[i++] = index;
+            }
+            result = columns.select(selected);
+            compacted = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return stamp of the selected records, equal for records with the same content
+     * even if they do not share the columns, e.g. built twice from the same data
+     */
+    ContentStamp getContentStamp() {
+        ContentStamp result = contentStamp;
+        if (result == null) {
+            long[] zoneHashes = new long[columns.zones.length];
+            for(int i=0; i<zoneHashes.length; i++) {
+                zoneHashes[i] = columns.zones[i].getID().hashCode();
+            }
+            long hash = 0;
+            for(int index = first(); index < end; index = next(index)) {
+                hash = ContentStamp.mix(hash, columns.fromTimes[index]);
+                hash = ContentStamp.mix(hash, columns.toTimes[index]);
+                hash = ContentStamp.mix(hash, Float.floatToIntBits(columns.fromHours[index]));
+                hash = ContentStamp.mix(hash, Float.floatToIntBits(columns.toHours[index]));
+                hash = ContentStamp.mix(hash, Float.floatToIntBits(columns.lengths[index]));
+                hash = ContentStamp.mix(hash, zoneHashes[columns.zoneIndexes[index]]);
+            }
+            result = size == 0
+                    ? new ContentStamp(0, 0, 0, hash)
+                    : new ContentStamp(size, getFirstRecordTo().getTime(), getLastRecordTo().getTime(), hash);
+            contentStamp = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return cursor over the records, positioned before the first one
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Flyweight over the records: reads the current record right from the columns, with the same getters
+     * as ChronoRecord, so iterating over the records does not create any objects
+     * (except for getFrom() and getTo(), which create Dates).
+     */
+    public class Cursor implements ChronoRecordValues {
+
+        private int index = -1;
+
+        private Cursor() {
+        }
+
+        /**
+         * @return false if there is no next record
+         */
+        public boolean moveToNext() {
+            if (index < end) {
+                index = index < 0 ? first() : next(index);
+            }
+            return index < end;
+        }
+
+        @Override
+        public long getFromTime() {
+            return columns.fromTimes[current()];
+        }
+
+        @Override
+        public long getToTime() {
+            return columns.toTimes[current()];
+        }
+
+        public Date getFrom() {
+            return new Date(getFromTime());
+        }
+
+        public Date getTo() {
+            return new Date(getToTime());
+        }
+
+        @Override
+        public float getFromHour() {
+            return columns.fromHours[current()];
+        }
+
+        @Override
+        public float getToHour() {
+            return columns.toHours[current()];
+        }
+
+        @Override
+        public float getFromHourUTC() {
+            return ZoneOffsets.UTC.getHourOfDay(getFromTime());
+        }
+
+        @Override
+        public float getToHourUTC() {
+            return ZoneOffsets.UTC.getHourOfDay(getToTime());
+        }
+
+        @Override
+        public float getMidSleep() {
+            return columns.midSleeps[current()];
+        }
+
+        @Override
+        public float getMidSleepUTC() {
+            return columns.midSleepsUTC[current()];
+        }
+
+        @Override
+        public float getLength() {
+            return columns.lengths[current()];
+        }
+
+        @Override
+        public TimeZone getTimeZone() {
+            return columns.getTimeZone(current());
+        }
+
+        @Override
+        public int getEndDayOfWeek() {
+            return columns.getEndDayOfWeek(current());
+        }
+
+        /**
+         * @return the current record as a new ChronoRecord
+         */
+        public ChronoRecord toRecord() {
+            return columns.toRecord(current());
+        }
+
+        private int current() {
+            if (index < 0 || index >= end) {
+                throw new IllegalStateException("No current record");
+            }
+            return index;
+        }
+    }
+
+    /*
+     * The callbacks below get a cursor positioned at the record, which moves on after the call,
+     * so read the values from it, but do not keep it.
+     *
+     * RecordToFloat and RecordToBool used to take a ChronoRecord. Implementations of that method still work,
+     * the default methods bridge the two signatures, at the cost of a new ChronoRecord per call.
+     * Implement exactly one of them.
+     */
+
     public interface RecordToFloat {
-        float apply(ChronoRecord record);
+        default float apply(ChronoRecordValues record) {
+            return apply(toRecord(record));
+        }
+
+        /**
+         * @deprecated implement apply(ChronoRecordValues), which needs no ChronoRecord per record
+         */
+        @Deprecated
+        default float apply(ChronoRecord record) {
+            return apply((ChronoRecordValues) record);
+        }
     }
 
     public interface RecordsToFloat {
@@ -244,6 +655,69 @@ public class ChronoRecords {
     }
 
     public interface RecordToBool {
-        boolean apply(ChronoRecord record);
+        default boolean apply(ChronoRecordValues record) {
+            return apply(toRecord(record));
+        }
+
+        /**
+         * @deprecated implement apply(ChronoRecordValues), which needs no ChronoRecord per record
+         */
+        @Deprecated
+        default boolean apply(ChronoRecord record) {
+            return apply((ChronoRecordValues) record);
+        }
+    }
+
+    private static ChronoRecord toRecord(ChronoRecordValues record) {
+        if (record instanceof ChronoRecord) {
+            return (ChronoRecord) record;
+        }
+        if (record instanceof Cursor) {
+            return ((Cursor) record).toRecord();
+        }
+        return new ChronoRecord(new Date(record.getFromTime()), new Date(record.getToTime()),
+                record.getFromHour(), record.getToHour(), record.getLength(), record.getTimeZone());
+    }
+
+    public interface WindowListener {
+        void enter(ChronoRecordValues record);
+        void leave(ChronoRecordValues record);
+        void windowComplete(Date from, Date to);
+    }
+
+    /**
+     * The size, the first and the last end of sleep, and a 64-bit hash of all the values of the records.
+     */
+    static final class ContentStamp {
+
+        private final int size;
+        private final long firstToTime, lastToTime;
+        private final long hash;
+
+        ContentStamp(int size, long firstToTime, long lastToTime, long hash) {
+            this.size = size;
+            this.firstToTime = firstToTime;
+            this.lastToTime = lastToTime;
+            this.hash = hash;
+        }
+
+        private static long mix(long hash, long value) {
+            return (hash ^ value) * 0x9E3779B97F4A7C15L + 0x632BE59BD9B4E019L;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ContentStamp)) {
+                return false;
+            }
+            ContentStamp other = (ContentStamp) o;
+            return size == other.size && firstToTime == other.firstToTime && lastToTime == other.lastToTime
+                    && hash == other.hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32));
+        }
     }
 }
@@ -0,0 +1,264 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag;
+
+import com.urbandroid.sleep.addon.stats.model.StatRecord;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Converts StatRecords to ChronoRecords in a single pass, straight into the columns.
+ *
+ * A StatRecord is accepted exactly when its gross length is in the range of the builder
+ * and toChronoRecord() converts it, but the records are validated by plain checks instead of catching
+ * the exceptions of ChronoRecord, and no ChronoRecord objects are created. The rejected records are counted by the reason.
+ *
+ * Not thread safe.
+ */
+public class ChronoRecordsBuilder {
+
+    public enum Rejection {
+        //The gross length is out of the range of the builder
+        GROSS_LENGTH,
+        //From or to is missing
+        MISSING_DATE,
+        //From is after to
+        FROM_AFTER_TO,
+        //Longer than ChronoRecord allows
+        TOO_LONG,
+        //The hour is not in [0, 24)
+        INVALID_FROM_HOUR,
+        INVALID_TO_HOUR,
+        //Another record ends at the same time, and the later added one wins
+        DUPLICATE
+    }
+
+    private final double minGrossLength;
+    private final double maxGrossLength;
+
+    private final TimeZone defaultTimeZone = TimeZone.getDefault();
+
+    private int size;
+    private long[] fromTimes = new long[16];
+    private long[] toTimes = new long[16];
+    private float[] fromHours = new float[16];
+    private float[] toHours = new float[16];
+    private float[] lengths = new float[16];
+    private int[] zoneIndexes = new int[16];
+
+    private TimeZone[] zones = new TimeZone[4];
+    private int zoneCount;
+
+    //Whether the records were added in the order of their to times, so that build() does not need to sort
+    private boolean sorted = true;
+
+    private final int[] rejections = new int[Rejection.values().length];
+
+    /**
+     * @param minGrossLength hours, records with shorter to - from are rejected
+     * @param maxGrossLength hours, records with longer to - from are rejected
+     */
+    public ChronoRecordsBuilder(double minGrossLength, double maxGrossLength) {
+        this.minGrossLength = minGrossLength;
+        this.maxGrossLength = maxGrossLength;
+    }
+
+    public ChronoRecordsBuilder addAll(Collection<? extends StatRecord> statRecords) {
+        for (StatRecord statRecord : statRecords) {
+            add(statRecord);
+        }
+        return this;
+    }
+
+    /**
+     * @return true if the record was accepted (it can still be replaced by a later duplicate)
+     */
+    public boolean add(StatRecord statRecord) {
+        Rejection rejection = validate(statRecord);
+        if (rejection != null) {
+            rejections[rejection.ordinal()]++;
+            return false;
+        }
+
+        if (size == toTimes.length) {
+            int capacity = size * 2;
+            fromTimes = Arrays.copyOf(fromTimes, capacity);
+            toTimes = Arrays.copyOf(toTimes, capacity);
+            fromHours = Arrays.copyOf(fromHours, capacity);
+            toHours = Arrays.copyOf(toHours, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            zoneIndexes = Arrays.copyOf(zoneIndexes, capacity);
+        }
+        long toTime = statRecord.getToDate().getTime();
+        if (size > 0 && toTime <= toTimes[size - 1]) {
+            sorted = false;
+        }
+        fromTimes[size] = statRecord.getFromDate().getTime();
+        toTimes[size] = toTime;
+        fromHours[size] = (float) statRecord.getFromHour();
+        toHours[size] = (float) statRecord.getToHour();
+        lengths[size] = statRecord.getTrackLengthInHours();
+        zoneIndexes[size] = zoneIndex(statRecord.getTimeZone());
+        size++;
+        return true;
+    }
+
+    public int getRejectedCount(Rejection reason) {
+        return rejections[reason.ordinal()];
+    }
+
+    /**
+     * @return the counts of the rejected records by the reason, without the reasons with no rejections
+     */
+    public Map<Rejection, Integer> getRejectedCounts() {
+        Map<Rejection, Integer> result = new EnumMap<>(Rejection.class);
+        for (Rejection reason : Rejection.values()) {
+            if (rejections[reason.ordinal()] > 0) {
+                result.put(reason, rejections[reason.ordinal()]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Builds the records added so far. Duplicates are resolved (and counted) now, the last added one wins.
+     */
+    public ChronoRecords build() {
+        int[] order = sortedOrder();
+
+        int count = 0;
+        int duplicates = 0;
+        for(int i=0; i<order.length; i++) {
+            if (i+1 < order.length && toTimes[order[i]] == toTimes[order[i+1]]) {
+                duplicates++;
+                continue;
+            }
+            order[count++] = order[i];
+        }
+        rejections[Rejection.DUPLICATE.ordinal()] = duplicates;
+        if (count == 0) {
+            return new ChronoRecords(ChronoColumns.EMPTY);
+        }
+
+        long[] builtFromTimes = new long[count];
+        long[] builtToTimes = new long[count];
+        float[] builtFromHours = new float[count];
+        float[] builtToHours = new float[count];
+        float[] builtLengths = new float[count];
+        int[] builtZoneIndexes = new int[count];
+        for(int i=0; i<count; i++) {
+            int index = order[i];
+            builtFromTimes[i] = fromTimes[index];
+            builtToTimes[i] = toTimes[index];
+            builtFromHours[i] = fromHours[index];
+            builtToHours[i] = toHours[index];
+            builtLengths[i] = lengths[index];
+            builtZoneIndexes[i] = zoneIndexes[index];
+        }
+        return new ChronoRecords(new ChronoColumns(
+                builtFromTimes, builtToTimes, builtFromHours, builtToHours, builtLengths,
+                Arrays.copyOf(zones, zoneCount), builtZoneIndexes));
+    }
+
+    @Override
+    public String toString() {
+        return "ChronoRecordsBuilder(added=" + size + ", rejected=" + getRejectedCounts() + ")";
+    }
+
+    /**
+     * The gross length, then the same checks as the constructor of ChronoRecord, in the same order.
+     */
+    private Rejection validate(StatRecord statRecord) {
+        double grossLength = statRecord.getTrackLengthInHours();
+        if (!(grossLength >= minGrossLength && grossLength <= maxGrossLength)) {
+            return Rejection.GROSS_LENGTH;
+        }
+        Date from = statRecord.getFromDate();
+        Date to = statRecord.getToDate();
+        if (from == null || to == null) {
+            return Rejection.MISSING_DATE;
+        }
+        if (from.getTime() > to.getTime()) {
+            return Rejection.FROM_AFTER_TO;
+        }
+        if (to.getTime() - from.getTime() > ChronoRecord.MAX_LENGTH_MS) {
+            return Rejection.TOO_LONG;
+        }
+        float fromHour = (float) statRecord.getFromHour();
+        if (fromHour < 0 || fromHour >= 24) {
+            return Rejection.INVALID_FROM_HOUR;
+        }
+        float toHour = (float) statRecord.getToHour();
+        if (toHour < 0 || toHour >= 24) {
+            return Rejection.INVALID_TO_HOUR;
+        }
+        return null;
+    }
+
+    private int zoneIndex(TimeZone timeZone) {
+        if (timeZone == null) {
+            timeZone = defaultTimeZone;
+        }
+        //The records usually come in runs of the same zone, try the last one first
+        if (size > 0 && zones[zoneIndexes[size - 1]].equals(timeZone)) {
+            return zoneIndexes[size - 1];
+        }
+        for(int i=0; i<zoneCount; i++) {
+            if (zones[i].equals(timeZone)) {
+                return i;
+            }
+        }
+        if (zoneCount == zones.length) {
+            zones = Arrays.copyOf(zones, zoneCount * 2);
+        }
+        zones[zoneCount] = timeZone;
+        return zoneCount++;
+    }
+
+    /**
+     * @return indexes of the added records, stably sorted by the to times
+     */
+    private int[] sortedOrder() {
+        int[] order = new int[size];
+        if (sorted) {
+            for(int i=0; i<size; i++) {
+                order[i] = i;
+            }
+            return order;
+        }
+
+        //The to times (relative to the first one) packed with the indexes in the low bits,
+        //so a primitive sort orders by the to time, and the equal ones by the index (i.e. stably)
+        int indexBits = 32 - Integer.numberOfLeadingZeros(size - 1);
+        long minToTime = Long.MAX_VALUE;
+        long maxToTime = Long.MIN_VALUE;
+        for(int i=0; i<size; i++) {
+            minToTime = Math.min(minToTime, toTimes[i]);
+            maxToTime = Math.max(maxToTime, toTimes[i]);
+        }
+        long range = maxToTime - minToTime;
+        long[] keys = new long[size];
+        if (range >= 0 && range >>> (63 - indexBits) == 0) {
+            for(int i=0; i<size; i++) {
+                keys[i] = (toTimes[i] - minToTime) << indexBits | i;
+            }
+        } else {
+            //Bogus dates too far apart to pack, pack the ranks of the to times instead
+            long[] sortedToTimes = Arrays.copyOf(toTimes, size);
+            Arrays.sort(sortedToTimes);
+            for(int i=0; i<size; i++) {
+                keys[i] = (long) Arrays.binarySearch(sortedToTimes, toTimes[i]) << indexBits | i;
+            }
+        }
+        Arrays.sort(keys);
+
+        long indexMask = (1L << indexBits) - 1;
+        for(int i=0; i<size; i++) {
+            order[i] = (int) (keys[i] & indexMask);
+        }
+        return order;
+    }
+}
@@ -1,15 +1,13 @@
 package com.urbandroid.sleep.addon.stats.model.socialjetlag
 
 import com.urbandroid.common.util.math.sun.MoreMath
-import kotlin.math.ceil
-import kotlin.math.floor
-import kotlin.math.min
 import kotlin.math.sqrt
 
 /** ----------------------------------------------------------------------------------
  *  ----------------------------------------------------------------------------------
  *
- *  When changing anything here, make the same change to CyclicDouble. It sucks, I know.
+ *  The float API of the cyclic arithmetic. The arithmetic itself, and the batch operations
+ *  on arrays, are implemented once in CyclicKernel.
  *
  *  ----------------------------------------------------------------------------------
  *  ----------------------------------------------------------------------------------
@@ -19,55 +17,24 @@ import kotlin.math.sqrt
  * Map x to the interval [0, cycle). Like modulo arithmetic, but on a continuous domain (floats).
  */
 fun normalize(x: Float, cycle: Float): Float {
-    if (cycle <= 0 ) {
-        throw IllegalArgumentException("Cycle must be positive: $cycle")
-    }
-    return if (x >= 0) {
-        if (x < cycle) {
-            x
-        } else {
-            fixRoundingErrors(x - floor(x / cycle) * cycle, cycle)
-        }
-    } else {
-        if (x > -cycle) {
-            fixRoundingErrors(cycle + x, cycle)
-        } else {
-            fixRoundingErrors(cycle + x - ceil(x / cycle) * cycle, cycle)
-        }
-    }
+    checkCycle(cycle)
+    return normalizeUnchecked(x, cycle)
 }
 
-/**
- * Just to deal with minor numeric errors, like (1/3)*3 = 1.0000001
- */
-private fun fixRoundingErrors(x: Float, cycle: Float) = if (x < 0 || x >= cycle) 0f else x
-
 fun sub(x: Float, y: Float, cycle: Float)
         = normalize(x - y, cycle)
 
-fun distance(x: Float, y: Float, cycle: Float)
-        = min(sub(x, y, cycle), sub(y, x, cycle))
+fun distance(x: Float, y: Float, cycle: Float): Float {
+    checkCycle(cycle)
+    return distanceUnchecked(x, y, cycle)
+}
 
 /**
  * Like distance, but with a sign. Minus if x is before refPoint "clockwise", plus otherwise.
  */
 fun signedDistance(x: Float, refPoint: Float, cycle: Float): Float {
-    val nx = normalize(x, cycle)
-    val nRefPoint = normalize(refPoint, cycle)
-    val distance = distance(nx, nRefPoint, cycle)
-    return if (nx < nRefPoint) {
-        if (nRefPoint - nx < cycle / 2f) {
-            -distance
-        } else {
-            distance
-        }
-    } else {
-        if (nx - nRefPoint < cycle / 2f) {
-            distance
-        } else {
-            -distance
-        }
-    }
+    checkCycle(cycle)
+    return signedDistanceUnchecked(x, refPoint, cycle)
 }
 
 /**
@@ -100,9 +67,18 @@ fun center(x: Float, weightX: Float, y: Float, weightY: Float, cycle: Float): Fl
 
 /**
  * Calculate "average" or "center of mass" of a set of points on
- * a circular interval (like a clock face).
+ * a circular interval (like a clock face): the arithmetic mean of the points on the arc
+ * around their circular mean, as computed by CyclicStatsAccumulator.
  */
-fun center(xs: FloatArray, cycle: Float): Float {
+fun center(xs: FloatArray, cycle: Float): Float =
+        CyclicStatsAccumulator.of(xs, cycle).center.toFloat()
+
+/**
+ * The center of mass folded pairwise in the order of the points, each new point weighted
+ * against all the previous ones. It matches center() as long as the points are close together,
+ * and it is what the k-means clustering folds its centroids with.
+ */
+fun pairwiseCenter(xs: FloatArray, cycle: Float): Float {
     if (xs.isEmpty()) {
         return Float.NaN
     }
@@ -124,6 +100,8 @@ fun median(xs: FloatArray, cycle: Float) = median(xs, center(xs, cycle), cycle)
  * where are typically no points at all, sort the points by distance from the opposite point,
  * and take the middle one. Typically, there is a cluster of points in a small area
  * (e.g. wake-up hours), and this definition really gives a meaningful median.
+ *
+ * See quickMedian() in CyclicKernel for the same median in O(n), without boxing.
  */
 fun median(xs: FloatArray, center: Float, cycle: Float): Float {
 
@@ -148,7 +126,8 @@ fun median(xs: FloatArray, center: Float, cycle: Float): Float {
 /**
  * Standard deviation, using the center of mass above, rather than arithmetic mean.
  */
-fun stdev(xs: FloatArray, cycle: Float) = stdev(xs, center(xs, cycle), cycle)
+fun stdev(xs: FloatArray, cycle: Float): Float =
+        CyclicStatsAccumulator.of(xs, cycle).stdev.toFloat()
 
 /**
  * Standard deviation from a given center, on a circular interval.
@@ -157,12 +136,7 @@ fun stdev(xs: FloatArray, center: Float, cycle: Float): Float {
     if (xs.isEmpty()) {
         return Float.NaN
     }
-    var sqDevSum = 0f
-    for(x in xs) {
-        val distance = distance(x, center, cycle)
-        sqDevSum += distance*distance
-    }
-    return sqrt(sqDevSum/xs.size)
+    return sqrt(sumOfSquaredDistances(xs, 0, xs.size, center, cycle)/xs.size)
 }
 
 fun opposite(x: Float, cycle: Float) = normalize(x + cycle/2, cycle)
@@ -0,0 +1,249 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag
+
+import kotlin.math.ceil
+import kotlin.math.floor
+import kotlin.math.min
+
+/** ----------------------------------------------------------------------------------
+ *  ----------------------------------------------------------------------------------
+ *
+ *  The core of the cyclic arithmetic, shared by CyclicFloat and CyclicDouble,
+ *  and its batch versions operating on windows of primitive arrays.
+ *
+ *  The arithmetic is implemented just once, for doubles. The float variants convert
+ *  at the boundary, and the batch loops are shared by inline templates over the element access.
+ *
+ *  The *Unchecked functions expect a positive cycle. The public functions check it,
+ *  the batch ones just once per call, so their loops are plain arithmetic over the arrays.
+ *
+ *  ----------------------------------------------------------------------------------
+ *  ----------------------------------------------------------------------------------
+ */
+
+internal fun checkCycle(cycle: Float) = checkCycle(cycle.toDouble())
+
+internal fun checkCycle(cycle: Double) {
+    if (cycle <= 0 ) {
+        throw IllegalArgumentException("Cycle must be positive: $cycle")
+    }
+}
+
+internal fun normalizeUnchecked(x: Double, cycle: Double): Double =
+        if (x >= 0) {
+            if (x < cycle) {
+                x
+            } else {
+                fixRoundingErrors(x - floor(x / cycle) * cycle, cycle)
+            }
+        } else {
+            if (x > -cycle) {
+                fixRoundingErrors(cycle + x, cycle)
+            } else {
+                fixRoundingErrors(cycle + x - ceil(x / cycle) * cycle, cycle)
+            }
+        }
+
+/**
+ * Rounding to float can round a value just below the cycle up to the cycle itself.
+ */
+internal fun normalizeUnchecked(x: Float, cycle: Float): Float =
+        fixRoundingErrors(normalizeUnchecked(x.toDouble(), cycle.toDouble()).toFloat(), cycle)
+
+/**
+ * Just to deal with minor numeric errors, like (1/3)*3 = 1.0000001
+ */
+private fun fixRoundingErrors(x: Double, cycle: Double) = if (x < 0 || x >= cycle) 0.0 else x
+
+private fun fixRoundingErrors(x: Float, cycle: Float) = if (x < 0 || x >= cycle) 0f else x
+
+internal fun distanceUnchecked(x: Double, y: Double, cycle: Double) =
+        min(normalizeUnchecked(x - y, cycle), normalizeUnchecked(y - x, cycle))
+
+internal fun distanceUnchecked(x: Float, y: Float, cycle: Float) =
+        distanceUnchecked(x.toDouble(), y.toDouble(), cycle.toDouble()).toFloat()
+
+internal fun signedDistanceUnchecked(x: Double, refPoint: Double, cycle: Double): Double {
+    val nx = normalizeUnchecked(x, cycle)
+    val nRefPoint = normalizeUnchecked(refPoint, cycle)
+    val distance = distanceUnchecked(nx, nRefPoint, cycle)
+    return if (nx < nRefPoint) {
+        if (nRefPoint - nx < cycle / 2.0) -distance else distance
+    } else {
+        if (nx - nRefPoint < cycle / 2.0) distance else -distance
+    }
+}
+
+internal fun signedDistanceUnchecked(x: Float, refPoint: Float, cycle: Float) =
+        signedDistanceUnchecked(x.toDouble(), refPoint.toDouble(), cycle.toDouble()).toFloat()
+
+private inline fun forWindow(offset: Int, length: Int, action: (Int) -> Unit) {
+    for (i in offset until offset + length) {
+        action(i)
+    }
+}
+
+private inline fun sumOfSquares(offset: Int, length: Int, value: (Int) -> Double): Double {
+    var sum = 0.0
+    forWindow(offset, length) {
+        val x = value(it)
+        sum += x * x
+    }
+    return sum
+}
+
+/**
+ * normalize() of xs[offset, offset + length), in place.
+ */
+fun normalizeInPlace(xs: FloatArray, offset: Int, length: Int, cycle: Float) {
+    checkCycle(cycle)
+    forWindow(offset, length) { xs[it] = normalizeUnchecked(xs[it], cycle) }
+}
+
+fun normalizeInPlace(xs: DoubleArray, offset: Int, length: Int, cycle: Double) {
+    checkCycle(cycle)
+    forWindow(offset, length) { xs[it] = normalizeUnchecked(xs[it], cycle) }
+}
+
+/**
+ * distance() of xs[offset, offset + length) from the center, written to the same positions of out.
+ * out can be xs itself.
+ */
+fun distances(xs: FloatArray, offset: Int, length: Int, center: Float, cycle: Float, out: FloatArray) {
+    checkCycle(cycle)
+    forWindow(offset, length) { out[it] = distanceUnchecked(xs[it], center, cycle) }
+}
+
+fun distances(xs: DoubleArray, offset: Int, length: Int, center: Double, cycle: Double, out: DoubleArray) {
+    checkCycle(cycle)
+    forWindow(offset, length) { out[it] = distanceUnchecked(xs[it], center, cycle) }
+}
+
+fun distances(xs: FloatArray, center: Float, cycle: Float, out: FloatArray) =
+        distances(xs, 0, xs.size, center, cycle, out)
+
+fun distances(xs: DoubleArray, center: Double, cycle: Double, out: DoubleArray) =
+        distances(xs, 0, xs.size, center, cycle, out)
+
+/**
+ * signedDistance() of xs[offset, offset + length) from the refPoint, written to the same positions of out.
+ * out can be xs itself.
+ */
+fun signedDistances(xs: FloatArray, offset: Int, length: Int, refPoint: Float, cycle: Float, out: FloatArray) {
+    checkCycle(cycle)
+    forWindow(offset, length) { out[it] = signedDistanceUnchecked(xs[it], refPoint, cycle) }
+}
+
+fun signedDistances(xs: DoubleArray, offset: Int, length: Int, refPoint: Double, cycle: Double, out: DoubleArray) {
+    checkCycle(cycle)
+    forWindow(offset, length) { out[it] = signedDistanceUnchecked(xs[it], refPoint, cycle) }
+}
+
+fun signedDistances(xs: FloatArray, refPoint: Float, cycle: Float, out: FloatArray) =
+        signedDistances(xs, 0, xs.size, refPoint, cycle, out)
+
+fun signedDistances(xs: DoubleArray, refPoint: Double, cycle: Double, out: DoubleArray) =
+        signedDistances(xs, 0, xs.size, refPoint, cycle, out)
+
+/**
+ * Sum of squared distance() of xs[offset, offset + length) from the center, summed in double.
+ */
+fun sumOfSquaredDistances(xs: FloatArray, offset: Int, length: Int, center: Float, cycle: Float): Float {
+    checkCycle(cycle)
+    val c = center.toDouble()
+    val cd = cycle.toDouble()
+    return sumOfSquares(offset, length) { distanceUnchecked(xs[it].toDouble(), c, cd) }.toFloat()
+}
+
+fun sumOfSquaredDistances(xs: DoubleArray, offset: Int, length: Int, center: Double, cycle: Double): Double {
+    checkCycle(cycle)
+    return sumOfSquares(offset, length) { distanceUnchecked(xs[it], center, cycle) }
+}
+
+/**
+ * Same as median(xs, cycle), but by quickselect instead of sorting, so it runs in expected O(n)
+ * without boxing. The points are copied to the scratch array (at least xs.size long) and reordered there,
+ * so with a reused scratch array nothing is allocated.
+ */
+@JvmOverloads
+fun quickMedian(xs: DoubleArray, cycle: Double, scratch: DoubleArray = DoubleArray(xs.size)) =
+        quickMedian(xs, center(xs, cycle), cycle, scratch)
+
+@JvmOverloads
+fun quickMedian(xs: FloatArray, cycle: Float, scratch: DoubleArray = DoubleArray(xs.size)) =
+        quickMedian(xs, center(xs, cycle), cycle, scratch)
+
+/**
+ * Same as median(xs, center, cycle), see quickMedian(xs, cycle).
+ */
+fun quickMedian(xs: DoubleArray, center: Double, cycle: Double, scratch: DoubleArray): Double {
+    checkCycle(cycle)
+    if (xs.isEmpty()) {
+        return Double.NaN
+    }
+    System.arraycopy(xs, 0, scratch, 0, xs.size)
+    return medianUnchecked(scratch, xs.size, normalizeUnchecked(center + cycle / 2, cycle), cycle)
+}
+
+/**
+ * The points are converted to doubles in the scratch array, the opposite point is computed in floats,
+ * like in median().
+ */
+fun quickMedian(xs: FloatArray, center: Float, cycle: Float, scratch: DoubleArray): Float {
+    checkCycle(cycle)
+    if (xs.isEmpty()) {
+        return Float.NaN
+    }
+    forWindow(0, xs.size) { scratch[it] = xs[it].toDouble() }
+    val opposite = normalizeUnchecked(center + cycle / 2, cycle)
+    return medianUnchecked(scratch, xs.size, opposite.toDouble(), cycle.toDouble()).toFloat()
+}
+
+/**
+ * The middle of xs[0, size) ordered by the clockwise distance from the opposite point,
+ * or the mean of the two middle ones. Reorders xs.
+ */
+private fun medianUnchecked(xs: DoubleArray, size: Int, opposite: Double, cycle: Double): Double {
+    val k = size / 2
+    selectByClockwiseDistance(xs, size, k, opposite, cycle)
+    if (size % 2 == 1) {
+        return xs[k]
+    }
+    //The one before the middle is the farthest of those the selection put before it
+    var lower = xs[0]
+    for (i in 1 until k) {
+        if (clockwiseDistance(opposite, xs[i], cycle) > clockwiseDistance(opposite, lower, cycle)) {
+            lower = xs[i]
+        }
+    }
+    return (lower + xs[k]) / 2
+}
+
+/**
+ * Hoare's quickselect: reorders xs[0, size) so that xs[k] is the k-th point by the clockwise distance
+ * from the given point, with no farther points before it and no closer ones after it.
+ */
+private fun selectByClockwiseDistance(xs: DoubleArray, size: Int, k: Int, from: Double, cycle: Double) {
+    var left = 0
+    var right = size - 1
+    while (left < right) {
+        val pivot = clockwiseDistance(from, xs[(left + right) ushr 1], cycle)
+        var i = left
+        var j = right
+        while (i <= j) {
+            while (clockwiseDistance(from, xs[i], cycle) < pivot) i++
+            while (clockwiseDistance(from, xs[j], cycle) > pivot) j--
+            if (i <= j) {
+                val swap = xs[i]
+                xs[i] = xs[j]
+                xs[j] = swap
+                i++
+                j--
+            }
+        }
+        when {
+            k <= j -> right = j
+            k >= i -> left = i
+            else -> return
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag;
+
+/**
+ * Center and standard deviation of points on a circular interval (like a clock face),
+ * maintained incrementally. Points can be added, removed, and whole accumulators merged in O(1),
+ * so the statistics can be updated when a new night arrives, or reduced from chunks in parallel,
+ * without rescanning all the points.
+ *
+ * The points are kept as signed distances from an anchor point on the cycle - the given one, the circular
+ * mean of the points for of(), or else the first point added - which does not move while there are any points. As long as the points
+ * are within half a cycle from the anchor (which is the case for any meaningful sleep schedule),
+ * the center is the arithmetic mean of the points on the arc where they lie, and the stdev is
+ * the root mean square of their cyclic distances from the center.
+ *
+ * center() and stdev() in CyclicFloat and CyclicDouble are computed by of(). pairwiseCenter() there
+ * folds the points pairwise in their order instead, so it can differ when the points are spread widely.
+ * A caller keeping a long running window should re-anchor it (see getAnchor()) when the points drift.
+ */
+public class CyclicStatsAccumulator {
+
+    private final double cycle;
+
+    private int count;
+
+    //NaN until the first point is added, unless given explicitly
+    private double anchor;
+    private final boolean fixedAnchor;
+    private double sum;
+    private double sqSum;
+
+    public CyclicStatsAccumulator(double cycle) {
+        if (cycle <= 0) {
+            throw new IllegalArgumentException("Cycle must be positive: " + cycle);
+        }
+        this.cycle = cycle;
+        this.anchor = Double.NaN;
+        this.fixedAnchor = false;
+    }
+
+    /**
+     * @param anchor the points are measured from here, use a point close to where they are expected
+     */
+    public CyclicStatsAccumulator(double cycle, double anchor) {
+        if (cycle <= 0) {
+            throw new IllegalArgumentException("Cycle must be positive: " + cycle);
+        }
+        this.cycle = cycle;
+        this.anchor = CyclicDoubleKt.normalize(anchor, cycle);
+        this.fixedAnchor = true;
+    }
+
+    public CyclicStatsAccumulator(CyclicStatsAccumulator other) {
+        this.cycle = other.cycle;
+        this.fixedAnchor = other.fixedAnchor;
+        this.count = other.count;
+        this.anchor = other.anchor;
+        this.sum = other.sum;
+        this.sqSum = other.sqSum;
+    }
+
+    /**
+     * The points measured from their circular mean (see CyclicVectorSum), so the result does not depend
+     * on which point comes first. If the points are spread so evenly that there is no mean direction,
+     * they are measured from the first one.
+     */
+    public static CyclicStatsAccumulator of(float[] xs, float cycle) {
+        CyclicStatsAccumulator result = new CyclicStatsAccumulator(cycle);
+        if (xs.length > 0) {
+            result.anchorAt(CyclicVectorSumKt.vectorSum(xs, cycle).center(cycle), xs[0]);
+        }
+        for(float x : xs) {
+            result.add(x);
+        }
+        return result;
+    }
+
+    public static CyclicStatsAccumulator of(double[] xs, double cycle) {
+        CyclicStatsAccumulator result = new CyclicStatsAccumulator(cycle);
+        if (xs.length > 0) {
+            result.anchorAt(CyclicVectorSumKt.vectorSum(xs, cycle).center(cycle), xs[0]);
+        }
+        for(double x : xs) {
+            result.add(x);
+        }
+        return result;
+    }
+
+    public void add(double x) {
+        if (Double.isNaN(anchor)) {
+            anchor = CyclicDoubleKt.normalize(x, cycle);
+        }
+        double d = CyclicDoubleKt.signedDistance(x, anchor, cycle);
+        sum += d;
+        sqSum += d * d;
+        count++;
+    }
+
+    /**
+     * Removes a point previously added. The anchor is the same as when the point was added,
+     * so the point is subtracted exactly as it was added. Removing a point that has not been added
+     * gives nonsense.
+     *
+     * @throws IllegalStateException if there are no points
+     */
+    public void remove(double x) {
+        if (count == 0) {
+            throw new IllegalStateException("No points to remove");
+        }
+        double d = CyclicDoubleKt.signedDistance(x, anchor, cycle);
+        sum -= d;
+        sqSum -= d * d;
+        count--;
+        if (count == 0) {
+            clear();
+        }
+    }
+
+    /**
+     * Adds all the points of the other accumulator to this one. The points of the other one are moved
+     * to the anchor of this one, which is exact as long as they are within half a cycle from it.
+     */
+    public void merge(CyclicStatsAccumulator other) {
+        if (other.cycle != cycle) {
+            throw new IllegalArgumentException("Different cycles: " + cycle + " " + other.cycle);
+        }
+        if (other.count == 0) {
+            return;
+        }
+        if (Double.isNaN(anchor)) {
+            anchor = other.anchor;
+        }
+        double delta = CyclicDoubleKt.signedDistance(other.anchor, anchor, cycle);
+        sqSum += other.sqSum + 2 * delta * other.sum + other.count * delta * delta;
+        sum += other.sum + other.count * delta;
+        count += other.count;
+    }
+
+    /**
+     * Removes all the points, so the accumulator can be reused.
+     */
+    public void clear() {
+        count = 0;
+        sum = 0;
+        sqSum = 0;
+        if (!fixedAnchor) {
+            anchor = Double.NaN;
+        }
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    private void anchorAt(double point, double fallback) {
+        anchor = CyclicDoubleKt.normalize(Double.isNaN(point) ? fallback : point, cycle);
+    }
+
+    /**
+     * @return the point the others are measured from, NaN if there is none yet
+     */
+    public double getAnchor() {
+        return anchor;
+    }
+
+    /**
+     * @return center of the points in [0, cycle), NaN if there are none
+     */
+    public double getCenter() {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        return CyclicDoubleKt.normalize(anchor + sum / count, cycle);
+    }
+
+    /**
+     * @return standard deviation of the points from the center, NaN if there are none
+     */
+    public double getStdev() {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        double mean = sum / count;
+        return Math.sqrt(Math.max(0, sqSum / count - mean * mean));
+    }
+
+    /**
+     * @return sum of the squared distances of the points from the center, 0 if there are none
+     */
+    public double getSumOfSquaredDistances() {
+        if (count == 0) {
+            return 0;
+        }
+        return Math.max(0, sqSum - sum * sum / count);
+    }
+}
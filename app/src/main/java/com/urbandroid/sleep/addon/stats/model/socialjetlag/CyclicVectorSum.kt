@@ -0,0 +1,73 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag
+
+import kotlin.math.PI
+import kotlin.math.atan2
+import kotlin.math.cos
+import kotlin.math.sin
+import kotlin.math.sqrt
+
+/**
+ * Sum of unit vectors pointing to points on a circular interval (like a clock face).
+ *
+ * The direction of the sum is the circular mean of the points. Unlike center() in CyclicFloat,
+ * it does not depend on the order of the points, and sums of disjoint sets of points can be
+ * simply added together - so the mean can be computed in parallel chunks and merged.
+ */
+class CyclicVectorSum(val sin: Double, val cos: Double, val count: Int) {
+
+    operator fun plus(other: CyclicVectorSum) =
+            CyclicVectorSum(sin + other.sin, cos + other.cos, count + other.count)
+
+    /**
+     * @return the circular mean in [0, cycle), or NaN if there are no points
+     * or they are spread so evenly that there is no mean direction.
+     */
+    fun center(cycle: Double): Double {
+        //The unit vectors of antipodal points do not cancel out exactly, only up to rounding errors
+        if (count == 0 || sqrt(sin * sin + cos * cos) < ZERO_RESULTANT * count) {
+            return Double.NaN
+        }
+        return normalize(atan2(sin, cos) * cycle / (2 * PI), cycle)
+    }
+
+    /**
+     * @return 1 if all the points are the same, close to 0 if they are spread all around the circle.
+     */
+    fun meanResultantLength() = if (count == 0) Double.NaN else sqrt(sin * sin + cos * cos) / count
+
+    companion object {
+        private const val ZERO_RESULTANT = 1e-9
+
+        @JvmField
+        val EMPTY = CyclicVectorSum(0.0, 0.0, 0)
+    }
+}
+
+/**
+ * @param from inclusive
+ * @param to exclusive
+ */
+@JvmOverloads
+fun vectorSum(xs: FloatArray, cycle: Float, from: Int = 0, to: Int = xs.size) =
+        vectorSum(cycle.toDouble(), from, to) { xs[it].toDouble() }
+
+/**
+ * @param from inclusive
+ * @param to exclusive
+ */
+@JvmOverloads
+fun vectorSum(xs: DoubleArray, cycle: Double, from: Int = 0, to: Int = xs.size) =
+        vectorSum(cycle, from, to) { xs[it] }
+
+private inline fun vectorSum(cycle: Double, from: Int, to: Int, x: (Int) -> Double): CyclicVectorSum {
+    checkCycle(cycle)
+    val toRadians = 2 * PI / cycle
+    var sinSum = 0.0
+    var cosSum = 0.0
+    for (i in from until to) {
+        val angle = x(i) * toRadians
+        sinSum += sin(angle)
+        cosSum += cos(angle)
+    }
+    return CyclicVectorSum(sinSum, cosSum, to - from)
+}
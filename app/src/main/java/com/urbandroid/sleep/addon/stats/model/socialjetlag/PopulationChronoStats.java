@@ -1,11 +1,18 @@
 package com.urbandroid.sleep.addon.stats.model.socialjetlag;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Collections;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
 /**
  * Sleep statistics mined from the sleep cloud DB.
+ *
+ * The built-in tables can be replaced by tables computed by PopulationChronoStatsBuilder, see load().
  */
 public class PopulationChronoStats {
 
@@ -13,6 +20,12 @@ public class PopulationChronoStats {
 
     private static final TreeMap<Float, Float> MID_SLEEP_ON_FREE_DAYS_HIST = new TreeMap<>();
 
+    //Format of the binary tables, see write()
+    private static final int TABLES_MAGIC = 0x50435354;
+    private static final int TABLES_VERSION = 1;
+
+    private static volatile Tables tables;
+
     static {
 
         MID_SLEEP_ON_FREE_DAYS_DISTRIBUTION.put(Float.NEGATIVE_INFINITY, 0.0f);
@@ -72,14 +85,171 @@ public class PopulationChronoStats {
         MID_SLEEP_ON_FREE_DAYS_HIST.put(11f, 2f);
         MID_SLEEP_ON_FREE_DAYS_HIST.put(11.75f, 1f);
         MID_SLEEP_ON_FREE_DAYS_HIST.put(14f, 1f);
+
+        loadBuiltIn();
+    }
+
+    /**
+     * Replaces the tables by the built-in ones.
+     */
+    static void loadBuiltIn() {
+        tables = new Tables(
+                keys(MID_SLEEP_ON_FREE_DAYS_DISTRIBUTION), values(MID_SLEEP_ON_FREE_DAYS_DISTRIBUTION),
+                keys(MID_SLEEP_ON_FREE_DAYS_HIST), values(MID_SLEEP_ON_FREE_DAYS_HIST));
+    }
+
+    /**
+     * Replaces the tables by the ones read from the stream, in the format written by PopulationChronoStatsBuilder.
+     * The stream is not closed.
+     *
+     * @throws IOException if the stream does not contain valid tables, the current tables are kept then
+     */
+    public static void load(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != TABLES_MAGIC) {
+            throw new IOException("Not population chrono stats");
+        }
+        int version = data.readInt();
+        if (version != TABLES_VERSION) {
+            throw new IOException("Unsupported version: " + version);
+        }
+        float[][] distribution = readTable(data);
+        float[][] histogram = readTable(data);
+        if (distribution[0].length < 3 || distribution[0][0] != Float.NEGATIVE_INFINITY) {
+            throw new IOException("Invalid distribution");
+        }
+        tables = new Tables(distribution[0], distribution[1], histogram[0], histogram[1]);
+    }
+
+    /**
+     * Writes the tables in the format load() reads.
+     */
+    static void write(OutputStream out,
+                      float[] distributionMidSleeps, float[] distributionQuantiles,
+                      float[] histBins, float[] histCounts) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(TABLES_MAGIC);
+        data.writeInt(TABLES_VERSION);
+        writeTable(data, distributionMidSleeps, distributionQuantiles);
+        writeTable(data, histBins, histCounts);
+        data.flush();
+    }
+
+    private static void writeTable(DataOutputStream data, float[] keys, float[] values) throws IOException {
+        data.writeInt(keys.length);
+        for(int i = 0; i < keys.length; i++) {
+            data.writeFloat(keys[i]);
+            data.writeFloat(values[i]);
+        }
+    }
+
+    /**
+     * @return keys and values, the keys are checked to be strictly increasing
+     */
+    private static float[][] readTable(DataInputStream data) throws IOException {
+        int size = data.readInt();
+        if (size < 0 || size > 1 << 16) {
+            throw new IOException("Invalid table size: " + size);
+        }
+        float[] keys = new float[size];
+        float[] values = new float[size];
+        for(int i = 0; i < size; i++) {
+            keys[i] = data.readFloat();
+            values[i] = data.readFloat();
+            if (Float.isNaN(keys[i]) || (i > 0 && !(keys[i] > keys[i - 1]))) {
+                throw new IOException("Keys not sorted: " + keys[i]);
+            }
+        }
+        return new float[][] {keys, values};
+    }
+
+    private static float[] keys(SortedMap<Float, Float> map) {
+        float[] result = new float[map.size()];
+        int i = 0;
+        for(float key : map.keySet()) {
+            result[i++] = key;
+        }
+        return result;
+    }
+
+    private static float[] values(SortedMap<Float, Float> map) {
+        float[] result = new float[map.size()];
+        int i = 0;
+        for(float value : map.values()) {
+            result[i++] = value;
+        }
+        return result;
     }
 
     public static SortedMap<Float,Float> getMidSleepOnFreeDaysHistogram() {
-        return Collections.unmodifiableSortedMap(MID_SLEEP_ON_FREE_DAYS_HIST);
+        return tables.histogram;
+    }
+
+    /**
+     * @return lower bounds of the histogram bins, sorted. A copy.
+     */
+    public static float[] getMidSleepOnFreeDaysHistogramBins() {
+        return tables.histBins.clone();
     }
 
+    /**
+     * @return counts of the histogram bins, in the order of getMidSleepOnFreeDaysHistogramBins(). A copy.
+     */
+    public static float[] getMidSleepOnFreeDaysHistogramCounts() {
+        return tables.histCounts.clone();
+    }
+
+    /**
+     * @return the quantile of the largest tabulated mid sleep not greater than the given one
+     */
     public static float getChronotypeQuantile(float midSleepOnFreeDays) {
-        return MID_SLEEP_ON_FREE_DAYS_DISTRIBUTION.floorEntry(midSleepOnFreeDays).getValue();
+        Tables t = tables;
+        return t.distributionQuantiles[floorIndex(t.distributionMidSleeps, midSleepOnFreeDays)];
+    }
+
+    /**
+     * Like getChronotypeQuantile(), but linearly interpolated between the tabulated mid sleeps
+     * (and extrapolated from the nearest two outside of them), clamped to [0, 1].
+     *
+     * @return NaN for NaN
+     */
+    public static float getChronotypeQuantileInterpolated(float midSleepOnFreeDays) {
+        if (Float.isNaN(midSleepOnFreeDays)) {
+            return Float.NaN;
+        }
+        Tables t = tables;
+        //The first entry is -infinity, the interpolation works with the finite ones.
+        int first = 1;
+        int last = t.distributionMidSleeps.length - 1;
+        int i = Math.min(Math.max(floorIndex(t.distributionMidSleeps, midSleepOnFreeDays), first), last - 1);
+        float x0 = t.distributionMidSleeps[i];
+        float x1 = t.distributionMidSleeps[i + 1];
+        float y0 = t.distributionQuantiles[i];
+        float y1 = t.distributionQuantiles[i + 1];
+        float quantile = y0 + (midSleepOnFreeDays - x0) * (y1 - y0) / (x1 - x0);
+        return Math.min(1f, Math.max(0f, quantile));
+    }
+
+    /**
+     * @return index of the largest mid sleep in the distribution not greater than the given one.
+     * NaN is greater than everything, like in the TreeMap the distribution is defined by.
+     */
+    private static int floorIndex(float[] midSleeps, float midSleepOnFreeDays) {
+        if (Float.isNaN(midSleepOnFreeDays)) {
+            return midSleeps.length - 1;
+        }
+        int low = 0;
+        int high = midSleeps.length - 1;
+        //midSleeps[0] is -infinity, so there always is one
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (midSleeps[mid] <= midSleepOnFreeDays) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
     }
 
     public static int getChronotypeRank(float chronotypeQuantile) {
@@ -96,4 +266,28 @@ public class PopulationChronoStats {
             return 1 + Math.round(10 * (chronotypeQuantile - 0.5f));
         }
     }
+
+    private static class Tables {
+
+        //The distribution as sorted arrays of mid sleeps and their quantiles, the first mid sleep is -infinity
+        final float[] distributionMidSleeps;
+        final float[] distributionQuantiles;
+
+        //The histogram as sorted arrays of bins and counts
+        final float[] histBins;
+        final float[] histCounts;
+        final SortedMap<Float, Float> histogram;
+
+        Tables(float[] distributionMidSleeps, float[] distributionQuantiles, float[] histBins, float[] histCounts) {
+            this.distributionMidSleeps = distributionMidSleeps;
+            this.distributionQuantiles = distributionQuantiles;
+            this.histBins = histBins;
+            this.histCounts = histCounts;
+            TreeMap<Float, Float> histogram = new TreeMap<>();
+            for(int i = 0; i < histBins.length; i++) {
+                histogram.put(histBins[i], histCounts[i]);
+            }
+            this.histogram = Collections.unmodifiableSortedMap(histogram);
+        }
+    }
 }
@@ -0,0 +1,139 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Computes the tables of PopulationChronoStats from the stats of many users.
+ *
+ * The mid sleeps on free days are counted in a histogram of one-minute bins over the day. Mid sleeps are
+ * hours of the day, so unlike a general quantile sketch (t-digest, KLL) the histogram has a fixed size
+ * no matter how many users are added, its quantiles are accurate to a minute, and builders of different
+ * shards of the users (e.g. built in parallel) are merged just by adding up the counts.
+ *
+ * Not thread safe, use a builder per thread and merge them.
+ */
+public class PopulationChronoStatsBuilder {
+
+    private static final int BINS_PER_HOUR = 60;
+
+    //Resolution of the written histogram, like the built-in one
+    private static final int HIST_BINS_PER_HOUR = 4;
+
+    //The written distribution are deciles, like the built-in one
+    private static final int DISTRIBUTION_STEPS = 10;
+
+    private final long[] counts = new long[24 * BINS_PER_HOUR];
+    private long count;
+
+    /**
+     * Adds the mid sleep on free days of a user, if known.
+     */
+    public PopulationChronoStatsBuilder add(SocialJetlagStats stats) {
+        return addMidSleepOnFreeDays(stats.getMidSleepFreeDays());
+    }
+
+    /**
+     * @param midSleep hours in [0, 24), NaN is ignored
+     */
+    public PopulationChronoStatsBuilder addMidSleepOnFreeDays(float midSleep) {
+        if (Float.isNaN(midSleep)) {
+            return this;
+        }
+        int bin = (int) Math.floor(midSleep * BINS_PER_HOUR);
+        counts[Math.min(Math.max(bin, 0), counts.length - 1)]++;
+        count++;
+        return this;
+    }
+
+    /**
+     * Adds all the users of the other builder to this one.
+     */
+    public PopulationChronoStatsBuilder merge(PopulationChronoStatsBuilder other) {
+        for(int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        return this;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @param quantile 0..1
+     * @return mid sleep on free days with the given fraction of the users below it,
+     * interpolated within the one-minute bin, NaN if there are no users
+     */
+    public float getMidSleep(double quantile) {
+        if (quantile < 0 || quantile > 1) {
+            throw new IllegalArgumentException("quantile: " + quantile);
+        }
+        if (count == 0) {
+            return Float.NaN;
+        }
+        double rank = quantile * count;
+        long cumulative = 0;
+        int bin = 0;
+        for(; bin < counts.length - 1; bin++) {
+            if (counts[bin] > 0 && cumulative + counts[bin] >= rank) {
+                break;
+            }
+            cumulative += counts[bin];
+        }
+        double fraction = counts[bin] == 0 ? 0 : (rank - cumulative) / counts[bin];
+        return (float) ((bin + fraction) / BINS_PER_HOUR);
+    }
+
+    /**
+     * Writes the distribution (deciles) and the histogram (quarter-hour bins) of the mid sleeps on free days
+     * in the binary format PopulationChronoStats.load() reads.
+     *
+     * @throws IllegalStateException if there are too few distinct mid sleeps to make a distribution
+     */
+    public void write(OutputStream out) throws IOException {
+
+        float[] midSleeps = new float[DISTRIBUTION_STEPS];
+        float[] quantiles = new float[DISTRIBUTION_STEPS];
+        midSleeps[0] = Float.NEGATIVE_INFINITY;
+        quantiles[0] = 0f;
+        int size = 1;
+        for(int i = 1; i < DISTRIBUTION_STEPS; i++) {
+            float midSleep = getMidSleep(i / (double) DISTRIBUTION_STEPS);
+            float quantile = i / (float) DISTRIBUTION_STEPS;
+            if (midSleep > midSleeps[size - 1]) {
+                midSleeps[size] = midSleep;
+                quantiles[size] = quantile;
+                size++;
+            } else if (size > 1) {
+                //The same mid sleep as the previous decile, the higher quantile wins.
+                quantiles[size - 1] = quantile;
+            }
+        }
+        if (size < 3) {
+            throw new IllegalStateException("Too few distinct mid sleeps: " + count + " users");
+        }
+
+        int histSize = 0;
+        float[] histBins = new float[24 * HIST_BINS_PER_HOUR];
+        float[] histCounts = new float[histBins.length];
+        int binsPerHistBin = BINS_PER_HOUR / HIST_BINS_PER_HOUR;
+        for(int histBin = 0; histBin < histBins.length; histBin++) {
+            long histCount = 0;
+            for(int bin = histBin * binsPerHistBin; bin < (histBin + 1) * binsPerHistBin; bin++) {
+                histCount += counts[bin];
+            }
+            if (histCount > 0) {
+                histBins[histSize] = histBin / (float) HIST_BINS_PER_HOUR;
+                histCounts[histSize] = histCount;
+                histSize++;
+            }
+        }
+
+        PopulationChronoStats.write(out,
+                Arrays.copyOf(midSleeps, size), Arrays.copyOf(quantiles, size),
+                Arrays.copyOf(histBins, histSize), Arrays.copyOf(histCounts, histSize));
+    }
+}
@@ -0,0 +1,103 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag;
+
+/**
+ * Running version of SocialJetlagStats.getSleepIrregularity(), for sliding windows.
+ * Records can be added and removed in O(1), without recomputing anything from scratch.
+ * The records have to be removed in the order they were added (like ChronoRecords.slideByDays() does).
+ */
+class SleepIrregularityWindow {
+
+    //When the center gets this far from the anchor, the mid sleeps are measured again from the center
+    private static final double MAX_ANCHOR_DISTANCE = 24 / 8.0;
+
+    private final boolean useUTC;
+
+    private CyclicStatsAccumulator midSleeps = new CyclicStatsAccumulator(24);
+
+    //Mid sleeps of the records in the window, in the order they were added (a ring buffer)
+    private float[] window = new float[16];
+    private int head;
+
+    private double lengthSum;
+    private double lengthSqSum;
+
+    SleepIrregularityWindow(boolean useUTC) {
+        this.useUTC = useUTC;
+    }
+
+    public void add(ChronoRecordValues record) {
+        int size = size();
+        if (size == 0) {
+            lengthSum = 0;
+            lengthSqSum = 0;
+            head = 0;
+        }
+        if (size == window.length) {
+            float[] grown = new float[size * 2];
+            System.arraycopy(window, head, grown, 0, size - head);
+            System.arraycopy(window, 0, grown, size - head, head);
+            window = grown;
+            head = 0;
+        }
+        float midSleep = getMidSleep(record);
+        window[(head + size) % window.length] = midSleep;
+        midSleeps.add(midSleep);
+        lengthSum += record.getLength();
+        lengthSqSum += record.getLength() * record.getLength();
+        reanchorIfNeeded();
+    }
+
+    /**
+     * @param record the record added first of those in the window
+     */
+    public void remove(ChronoRecordValues record) {
+        midSleeps.remove(window[head]);
+        head = (head + 1) % window.length;
+        lengthSum -= record.getLength();
+        lengthSqSum -= record.getLength() * record.getLength();
+        reanchorIfNeeded();
+    }
+
+    public int size() {
+        return midSleeps.getCount();
+    }
+
+    /**
+     * Same as SocialJetlagStats.getSleepIrregularity() on the records currently in the window.
+     */
+    public float getSleepIrregularity() {
+        int count = midSleeps.getCount();
+        if (count < 5) {
+            return -1f;
+        }
+        double midSleepStd = midSleeps.getStdev();
+        double lengthMean = lengthSum / count;
+        double sleepLenStd = Math.sqrt(Math.max(0, lengthSqSum / count - lengthMean * lengthMean));
+        return (float) ((midSleepStd + sleepLenStd) / 2);
+    }
+
+    /**
+     * The accumulator measures the mid sleeps from a fixed anchor, which is fine as long as they are
+     * close to it. A window sliding over years of a drifting schedule is rebuilt from the kept mid sleeps,
+     * anchored at the current center, so the removed values always match the added ones.
+     */
+    private void reanchorIfNeeded() {
+        int size = size();
+        if (size == 0) {
+            return;
+        }
+        double center = midSleeps.getCenter();
+        if (CyclicDoubleKt.distance(center, midSleeps.getAnchor(), 24) <= MAX_ANCHOR_DISTANCE) {
+            return;
+        }
+        CyclicStatsAccumulator reanchored = new CyclicStatsAccumulator(24, center);
+        for(int i=0; i<size; i++) {
+            reanchored.add(window[(head + i) % window.length]);
+        }
+        midSleeps = reanchored;
+    }
+
+    private float getMidSleep(ChronoRecordValues record) {
+        return useUTC ? record.getMidSleepUTC() : record.getMidSleep();
+    }
+}
@@ -9,6 +9,7 @@ import com.urbandroid.sleep.addon.stats.model.StatRecord;
 import com.urbandroid.sleep.addon.stats.model.socialjetlag.clustering.ClusteredChronoRecords;
 import com.urbandroid.sleep.addon.stats.model.socialjetlag.clustering.SleepLabel;
 import com.urbandroid.util.ScienceUtil;
+import com.urbandroid.util.ZoneOffsets;
 
 import org.apache.commons.math3.util.Pair;
 
@@ -17,6 +18,13 @@ import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class SocialJetlagStats {
 
@@ -24,32 +32,74 @@ public class SocialJetlagStats {
             Collection<? extends StatRecord> statRecords,
             Context context)
     {
-        //Skip too short or too long sleeps.
-        List<StatRecord> goodStatRecords = SleepStatsUtilKt.filterByGrossLength(statRecords, 2, 16);
-
-        ArrayList<ChronoRecord> chronoRecords = new ArrayList<>();
-        for (StatRecord statRecord : goodStatRecords) {
-            ChronoRecord chronoRecord = toChronoRecord(statRecord);
-            if (chronoRecord != null) {
-                chronoRecords.add(chronoRecord);
-            }
+        return create(statRecords, context, null);
+    }
+
+    /**
+     * @param narrowCache cache of the stats narrowed from these ones, owned by the caller, or null to not cache them
+     */
+    public static SocialJetlagStats create(
+            Collection<? extends StatRecord> statRecords,
+            Context context,
+            SocialJetlagStatsCache narrowCache)
+    {
+        //Skip too short or too long sleeps, and invalid records.
+        ChronoRecordsBuilder builder = new ChronoRecordsBuilder(2, 16).addAll(statRecords);
+        ChronoRecords chronoRecords = builder.build();
+        if (!builder.getRejectedCounts().isEmpty()) {
+            Logger.logInfo("SocialJetlagStats: " + builder);
         }
 
         boolean useUTCforIrregularity = false;
 
-        return new SocialJetlagStats(new ChronoRecords(chronoRecords), useUTCforIrregularity);
+        return new SocialJetlagStats(chronoRecords, useUTCforIrregularity, narrowCache);
     }
 
+    //Windows of the chronotype history warm started one from another, the first of each chain starts from scratch.
+    //A warm start keeps the local optimum of the previous window, so the chains are bounded to let the clustering
+    //drift back to the k-means++ one - 12 monthly steps restart it once a year. The chains are also the tasks
+    //of the parallel history, a history of a few years gives a few of them. The length does not depend
+    //on the executor, so that the parallel history is the same as the sequential one.
+    private static final int WARM_START_CHAIN = 12;
+
     private final ChronoRecords records;
 
     private final boolean useUTCforIrregularity;
 
-    private final ValueCache valueCache;
+    private enum Key {
+        SLEEP_IRREGULARITY,
+        MID_SLEEP_STATS,
+        CLUSTERED_RECORDS,
+        FREE_AND_BUSY_DAYS,
+        MID_SLEEP_FREE_DAYS,
+        MID_SLEEP_BUSY_DAYS,
+        SOCIAL_JET_LAG,
+        CHRONOTYPE
+    }
+
+    private final ValueCache<Key> valueCache;
+
+    //Null if the narrowed stats are not cached
+    private final SocialJetlagStatsCache narrowCache;
+
+    //Warm start of the clustering, only for private stats that are never cached, see getChronotypeHistory()
+    private final double[] initialClusterCenters;
 
     SocialJetlagStats(ChronoRecords records, boolean useUTCforIrregularity) {
+        this(records, useUTCforIrregularity, null);
+    }
+
+    SocialJetlagStats(ChronoRecords records, boolean useUTCforIrregularity, SocialJetlagStatsCache narrowCache) {
+        this(records, useUTCforIrregularity, narrowCache, null);
+    }
+
+    private SocialJetlagStats(ChronoRecords records, boolean useUTCforIrregularity,
+                              SocialJetlagStatsCache narrowCache, double[] initialClusterCenters) {
         this.records = records;
         this.useUTCforIrregularity = useUTCforIrregularity;
-        this.valueCache = new ValueCache();
+        this.valueCache = new ValueCache<>(Key.class);
+        this.narrowCache = narrowCache;
+        this.initialClusterCenters = initialClusterCenters;
     }
 
     public int size() {
@@ -60,20 +110,26 @@ public class SocialJetlagStats {
         return records;
     }
 
+    /**
+     * If these stats were created with a SocialJetlagStatsCache, repeated calls for the same range
+     * return the same instance, with its values already computed.
+     */
     public SocialJetlagStats narrow(Date from, Date to) {
-        return new SocialJetlagStats(records.narrow(from, to), useUTCforIrregularity);
+        if (narrowCache == null) {
+            return new SocialJetlagStats(records.narrow(from, to), useUTCforIrregularity);
+        }
+        return narrowCache.narrow(records, from, to, useUTCforIrregularity);
     }
 
     public float getSleepIrregularity() {
-        return valueCache.computeIfAbsent("SleepIrregularity", new ValueCache.Supplier() {
+        return valueCache.computeFloatIfAbsent(Key.SLEEP_IRREGULARITY, new ValueCache.FloatSupplier() {
             @Override
-            public Object get() {
+            public float get() {
                 if (records.size() < 5) {
                     return -1f;
                 } else {
-                    float[] midSleeps = useUTCforIrregularity ? records.getMidSleepUTC() : records.getMidSleeps();
-                    float midSleepStd = CyclicFloatKt.stdev(midSleeps, 24f);
-                    float sleepLenStd = ScienceUtil.stddev(records.getLengths());
+                    float midSleepStd = (float) getMidSleepStats().getStdev();
+                    float sleepLenStd = ScienceUtil.stddev(records.compact().lengths);
                     return (midSleepStd + sleepLenStd) / 2;
                 }
             }
@@ -106,36 +162,42 @@ public class SocialJetlagStats {
         if (records.size() < 5) {
             return -1f;
         }
-        float[] midSleeps = useUTCforIrregularity ? records.getMidSleepUTC() : records.getMidSleeps();
-        return CyclicFloatKt.center(midSleeps, 24f);
+        return CyclicFloatKt.normalize((float) getMidSleepStats().getCenter(), 24f);
+    }
+
+    private CyclicStatsAccumulator getMidSleepStats() {
+        return valueCache.computeIfAbsent(Key.MID_SLEEP_STATS, new ValueCache.Supplier<CyclicStatsAccumulator>() {
+            @Override
+            public CyclicStatsAccumulator get() {
+                float[] midSleeps = useUTCforIrregularity ? records.compact().midSleepsUTC : records.compact().midSleeps;
+                return CyclicStatsAccumulator.of(midSleeps, 24f);
+            }
+        });
     }
 
     public float getAverageLengthHours() {
         if (records.size() < 5) {
             return -1f;
         }
-        float[] sleepLens = records.getLengths();
+        float[] sleepLens = records.compact().lengths;
         return ScienceUtil.avg(sleepLens);
     }
 
-    private void splitFreeAndBusyDays() {
-        valueCache.computeIfAbsent("FreeAndBusyDays", new ValueCache.Supplier() {
+    private FreeAndBusyDays splitFreeAndBusyDays() {
+        return valueCache.computeIfAbsent(Key.FREE_AND_BUSY_DAYS, new ValueCache.Supplier<FreeAndBusyDays>() {
             @Override
-            public Object get() {
+            public FreeAndBusyDays get() {
                 ClusteredChronoRecords clusteredRecords = getClusteredRecords();
                 boolean goodClustering = decideIfClusteringIsGood(clusteredRecords);
-                valueCache.put("GoodClustering", goodClustering);
                 if (goodClustering) {
-                    valueCache.put("FreeDays", clusteredRecords.getLabeledRecords(SleepLabel.FREE_DAY));
-                    valueCache.put("BusyDays", clusteredRecords.getLabeledRecords(SleepLabel.BUSY_DAY));
-                    valueCache.put("UnclassifiedDays", clusteredRecords.getLabeledRecords(SleepLabel.OUTLIER));
+                    return new FreeAndBusyDays(true,
+                            clusteredRecords.getLabeledRecords(SleepLabel.FREE_DAY),
+                            clusteredRecords.getLabeledRecords(SleepLabel.BUSY_DAY),
+                            clusteredRecords.getLabeledRecords(SleepLabel.OUTLIER));
                 } else {
                     Pair<ChronoRecords, ChronoRecords> pair = records.split(weekendFilter());
-                    valueCache.put("FreeDays", pair.getFirst());
-                    valueCache.put("BusyDays", pair.getSecond());
-                    valueCache.put("UnclassifiedDays", new ChronoRecords());
+                    return new FreeAndBusyDays(false, pair.getFirst(), pair.getSecond(), new ChronoRecords());
                 }
-                return null;
             }
         });
     }
@@ -157,9 +219,9 @@ public class SocialJetlagStats {
             return false;
         }
 
-        float avgLenFree = ScienceUtil.avg(freeDays.getLengths());
-        float avgLenBusy = ScienceUtil.avg(busyDays.getLengths());
-        float stdLenBusy = ScienceUtil.stddev(busyDays.getLengths());
+        float avgLenFree = ScienceUtil.avg(freeDays.compact().lengths);
+        float avgLenBusy = ScienceUtil.avg(busyDays.compact().lengths);
+        float stdLenBusy = ScienceUtil.stddev(busyDays.compact().lengths);
         if ( (avgLenFree - avgLenBusy) / stdLenBusy < -0.5f ) {
             //Sleep length on free days is smaller than sleep length on working days.
             //It seems unlikely and the clustering is probably wrong.
@@ -170,70 +232,73 @@ public class SocialJetlagStats {
     }
 
     private ClusteredChronoRecords getClusteredRecords() {
-        return valueCache.computeIfAbsent("ClusteredRecords", new ValueCache.Supplier() {
+        return valueCache.computeIfAbsent(Key.CLUSTERED_RECORDS, new ValueCache.Supplier<ClusteredChronoRecords>() {
             @Override
-            public Object get() {
-                return new ClusteredChronoRecords(records);
+            public ClusteredChronoRecords get() {
+                return new ClusteredChronoRecords(records, initialClusterCenters);
             }
         });
     }
 
+    /**
+     * @return see ClusteredChronoRecords.getCenters()
+     */
+    double[] getClusterCenters() {
+        return getClusteredRecords().getCenters();
+    }
+
     public boolean hasGoodClustering() {
-        splitFreeAndBusyDays();
-        return valueCache.get("GoodClustering");
+        return splitFreeAndBusyDays().goodClustering;
     }
 
     public ChronoRecords getFreeDays() {
-        splitFreeAndBusyDays();
-        return valueCache.get("FreeDays");
+        return splitFreeAndBusyDays().freeDays;
     }
 
     public ChronoRecords getBusyDays() {
-        splitFreeAndBusyDays();
-        return valueCache.get("BusyDays");
+        return splitFreeAndBusyDays().busyDays;
     }
 
     public ChronoRecords getUnclassifiedDays() {
-        splitFreeAndBusyDays();
-        return valueCache.get("UnclassifiedDays");
+        return splitFreeAndBusyDays().unclassifiedDays;
     }
 
     public float getMidSleepFreeDays() {
-        return valueCache.computeIfAbsent("MidSleepFreeDays", new ValueCache.Supplier() {
+        return valueCache.computeFloatIfAbsent(Key.MID_SLEEP_FREE_DAYS, new ValueCache.FloatSupplier() {
             @Override
-            public Object get() {
+            public float get() {
                 ChronoRecords records = getFreeDays();
                 if (records.size() < 5) {
 //                    Logger.logDebug("SocialJetlagStats.midSleepFreeDays: not enough data");
                     //-1 is a valid value for mid sleep, so I return NaN
                     return Float.NaN;
                 } else {
-                    return ScienceUtil.avg(records.getMidSleeps());
+                    return ScienceUtil.avg(records.compact().midSleeps);
                 }
             }
         });
     }
 
     public float getMidSleepBusyDays() {
-        return valueCache.computeIfAbsent("MidSleepBusyDays", new ValueCache.Supplier() {
+        return valueCache.computeFloatIfAbsent(Key.MID_SLEEP_BUSY_DAYS, new ValueCache.FloatSupplier() {
             @Override
-            public Object get() {
+            public float get() {
                 ChronoRecords records = getBusyDays();
                 if (records.size() < 5) {
 //                    Logger.logDebug("SocialJetlagStats.midSleepBusyDays: not enough data");
                     //-1 is a valid value for mid sleep, so I return NaN
                     return Float.NaN;
                 } else {
-                    return ScienceUtil.avg(records.getMidSleeps());
+                    return ScienceUtil.avg(records.compact().midSleeps);
                 }
             }
         });
     }
 
     public float getSocialJetLag() {
-        return valueCache.computeIfAbsent("SocialJetLag", new ValueCache.Supplier() {
+        return valueCache.computeFloatIfAbsent(Key.SOCIAL_JET_LAG, new ValueCache.FloatSupplier() {
             @Override
-            public Object get() {
+            public float get() {
                 float midSleepBusyDays = getMidSleepBusyDays();
                 float midSleepFreeDays = getMidSleepFreeDays();
                 if (Float.isNaN(midSleepBusyDays) || Float.isNaN(midSleepFreeDays)) {
@@ -247,9 +312,9 @@ public class SocialJetlagStats {
     }
 
     public float getChronotype() {
-        return valueCache.computeIfAbsent("Chronotype", new ValueCache.Supplier() {
+        return valueCache.computeFloatIfAbsent(Key.CHRONOTYPE, new ValueCache.FloatSupplier() {
             @Override
-            public Object get() {
+            public float get() {
                 float midSleepFreeDays = getMidSleepFreeDays();
                 if (Float.isNaN(midSleepFreeDays)) {
                     return -1f;
@@ -262,65 +327,148 @@ public class SocialJetlagStats {
         });
     }
 
+    /**
+     * The windows overlap, so the clustering of each window starts from the clusters of the previous one,
+     * in chains of WARM_START_CHAIN windows. The stats of the windows are private to the history,
+     * they are never cached (see narrow()), so the warm start does not affect the stats of the same ranges
+     * used elsewhere.
+     */
     public List<Pair<Date,Float>> getChronotypeHistory(int fragmentLenghtMonths, int stepMonths) {
-        return getAggregatedHistoryMonths(
-                fragmentLenghtMonths, stepMonths,
-                new ChronoRecords.RecordsToFloat() {
-                    @Override
-                    public float apply(ChronoRecords chunk) {
-                        return new SocialJetlagStats(chunk, useUTCforIrregularity).getChronotype();
-                    }
-                });
+        List<ChronoRecords> chunks = records.splitByMonth(fragmentLenghtMonths, stepMonths);
+        List<Pair<Date,Float>> result = new ArrayList<>(chunks.size());
+        for(int from = 0; from < chunks.size(); from += WARM_START_CHAIN) {
+            result.addAll(getChronotypeChain(chunks, from));
+        }
+        return result;
     }
 
-    public List<Pair<Date,Float>> getSleepIrregularityHistory(int fragmentLenghtDays, int stepDays) {
-        return getAggregatedHistoryDays(
-                fragmentLenghtDays, stepDays,
-                new ChronoRecords.RecordsToFloat() {
+    /**
+     * Same as getChronotypeHistory(int, int) (the same warm start chains, so the same results),
+     * but the chains are evaluated in parallel on the given executor.
+     * If the whole history is not done in time, or the calling thread is interrupted,
+     * the chains not evaluated yet are cancelled before the exception is thrown.
+     */
+    public List<Pair<Date,Float>> getChronotypeHistory(int fragmentLenghtMonths, int stepMonths,
+                                                       Executor executor, long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        final List<ChronoRecords> chunks = records.splitByMonth(fragmentLenghtMonths, stepMonths);
+        List<FutureTask<List<Pair<Date,Float>>>> tasks = new ArrayList<>();
+        try {
+            for(int from = 0; from < chunks.size(); from += WARM_START_CHAIN) {
+                final int chainFrom = from;
+                FutureTask<List<Pair<Date,Float>>> task = new FutureTask<>(new Callable<List<Pair<Date,Float>>>() {
                     @Override
-                    public float apply(ChronoRecords chunk) {
-                        return new SocialJetlagStats(chunk, useUTCforIrregularity).getSleepIrregularity();
+                    public List<Pair<Date,Float>> call() {
+                        return getChronotypeChain(chunks, chainFrom);
                     }
                 });
+                tasks.add(task);
+                executor.execute(task);
+            }
+
+            List<Pair<Date,Float>> result = new ArrayList<>(chunks.size());
+            for(FutureTask<List<Pair<Date,Float>>> task : tasks) {
+                result.addAll(task.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+            }
+            return result;
+
+        } catch (TimeoutException e) {
+            //The chains still queued or running are not needed anymore, stop them before the caller gets control
+            cancel(tasks);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            //No-op for the tasks already done or cancelled
+            cancel(tasks);
+        }
     }
 
-    private List<Pair<Date,Float>> getAggregatedHistoryMonths(
-            int fragmentLenghtMonths, int stepMonths,
-            ChronoRecords.RecordsToFloat valueSupplier)
-    {
-        List<Pair<Date,Float>> result = new ArrayList<>();
-        List<ChronoRecords> chunks = records.splitByMonth(fragmentLenghtMonths, stepMonths);
-        for(ChronoRecords chunk : chunks) {
-            Date endDate = chunk.getTo();
-            float value = valueSupplier.apply(chunk);
-            result.add(Pair.create(endDate, value));
+    private static void cancel(List<? extends FutureTask<?>> tasks) {
+        for(FutureTask<?> task : tasks) {
+            task.cancel(true);
         }
-        return result;
     }
 
-    private List<Pair<Date,Float>> getAggregatedHistoryDays(
-            int fragmentLenghtDays, int stepDays,
-            ChronoRecords.RecordsToFloat valueSupplier)
-    {
-        List<Pair<Date,Float>> result = new ArrayList<>();
-        List<ChronoRecords> chunks = records.splitByDays(fragmentLenghtDays, stepDays);
-        for(ChronoRecords chunk : chunks) {
-            Date endDate = chunk.getTo();
-            float value = valueSupplier.apply(chunk);
-            result.add(Pair.create(endDate, value));
+    /**
+     * Chronotypes of up to WARM_START_CHAIN windows starting at the given one,
+     * the first one clustered from scratch, the others warm started from the previous window.
+     */
+    private List<Pair<Date,Float>> getChronotypeChain(List<ChronoRecords> chunks, int from) {
+        int to = Math.min(chunks.size(), from + WARM_START_CHAIN);
+        List<Pair<Date,Float>> result = new ArrayList<>(to - from);
+        double[] clusterCenters = null;
+        for(int i = from; i < to; i++) {
+            //Already narrowed by splitByMonth()
+            ChronoRecords chunk = chunks.get(i);
+            SocialJetlagStats chunkStats = new SocialJetlagStats(chunk, useUTCforIrregularity, null, clusterCenters);
+            result.add(Pair.create(chunk.getTo(), chunkStats.getChronotype()));
+            double[] chunkCenters = chunkStats.getClusterCenters();
+            if (chunkCenters != null) {
+                clusterCenters = chunkCenters;
+            }
         }
         return result;
     }
 
+    public List<Pair<Date,Float>> getSleepIrregularityHistory(int fragmentLenghtDays, int stepDays) {
+        final List<Pair<Date,Float>> result = new ArrayList<>();
+        final SleepIrregularityWindow window = new SleepIrregularityWindow(useUTCforIrregularity);
+        records.slideByDays(
+                fragmentLenghtDays, stepDays,
+                new ChronoRecords.WindowListener() {
+                    @Override
+                    public void enter(ChronoRecordValues record) {
+                        window.add(record);
+                    }
+
+                    @Override
+                    public void leave(ChronoRecordValues record) {
+                        window.remove(record);
+                    }
+
+                    @Override
+                    public void windowComplete(Date from, Date to) {
+                        result.add(Pair.create(to, window.getSleepIrregularity()));
+                    }
+                });
+        return result;
+    }
+
     private ChronoRecords.RecordToBool weekendFilter() {
+        final ZoneOffsets zone = ZoneOffsets.of(TimeZone.getDefault());
         return new ChronoRecords.RecordToBool() {
             @Override
-            public boolean apply(ChronoRecord record) {
-                Calendar calendar = Calendar.getInstance();
-                calendar.setTime(record.getTo());
-                return  calendar.get(Calendar.DAY_OF_WEEK) == Calendar.SUNDAY ||
-                        calendar.get(Calendar.DAY_OF_WEEK) == Calendar.SATURDAY;
+            public boolean apply(ChronoRecordValues record) {
+                int dayOfWeek = zone.getDayOfWeek(record.getToTime());
+                return  dayOfWeek == Calendar.SUNDAY ||
+                        dayOfWeek == Calendar.SATURDAY;
             }
         };
     }
+
+    private static class FreeAndBusyDays {
+
+        final boolean goodClustering;
+        final ChronoRecords freeDays;
+        final ChronoRecords busyDays;
+        final ChronoRecords unclassifiedDays;
+
+        FreeAndBusyDays(boolean goodClustering,
+                        ChronoRecords freeDays, ChronoRecords busyDays, ChronoRecords unclassifiedDays) {
+            this.goodClustering = goodClustering;
+            this.freeDays = freeDays;
+            this.busyDays = busyDays;
+            this.unclassifiedDays = unclassifiedDays;
+        }
+    }
 }
@@ -0,0 +1,111 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of SocialJetlagStats narrowed from other records, so that the values computed lazily
+ * by SocialJetlagStats (clustering, chronotype, social jetlag...) are reused by repeated queries
+ * for the same date ranges.
+ *
+ * The key is the content stamp of the ChronoRecords being narrowed (see ChronoRecords.getContentStamp()),
+ * the date range, and useUTC. So the records built again from the same data, e.g. by another
+ * SocialJetlagStats.create() with the same cache, hit the entries of the first ones. The stamp is computed
+ * once per ChronoRecords, in O(n).
+ *
+ * There is no shared instance - a caller that queries the same stats repeatedly creates a cache, passes it to
+ * SocialJetlagStats.create(), and drops it together with the stats. The narrowed stats use the same cache.
+ */
+public class SocialJetlagStatsCache {
+
+    public static final int DEFAULT_MAX_SIZE = 64;
+
+    private final Map<Key, SocialJetlagStats> cache;
+
+    private long hits;
+    private long misses;
+
+    public SocialJetlagStatsCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public SocialJetlagStatsCache(final int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize: " + maxSize);
+        }
+        this.cache = new LinkedHashMap<Key, SocialJetlagStats>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, SocialJetlagStats> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return stats of records.narrow(from, to), cached
+     */
+    public synchronized SocialJetlagStats narrow(ChronoRecords records, Date from, Date to, boolean useUTCforIrregularity) {
+        Key key = new Key(records.getContentStamp(), from.getTime(), to.getTime(), useUTCforIrregularity);
+        SocialJetlagStats stats = cache.get(key);
+        if (stats == null) {
+            misses++;
+            stats = new SocialJetlagStats(records.narrow(from, to), useUTCforIrregularity, this);
+            cache.put(key, stats);
+        } else {
+            hits++;
+        }
+        return stats;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+        hits = 0;
+        misses = 0;
+    }
+
+    private static class Key {
+
+        private final ChronoRecords.ContentStamp records;
+        private final long from, to;
+        private final boolean useUTCforIrregularity;
+
+        Key(ChronoRecords.ContentStamp records, long from, long to, boolean useUTCforIrregularity) {
+            this.records = records;
+            this.from = from;
+            this.to = to;
+            this.useUTCforIrregularity = useUTCforIrregularity;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return records.equals(other.records) && from == other.from && to == other.to
+                    && useUTCforIrregularity == other.useUTCforIrregularity;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = records.hashCode();
+            result = 31 * result + (int) (from ^ (from >>> 32));
+            result = 31 * result + (int) (to ^ (to >>> 32));
+            result = 31 * result + (useUTCforIrregularity ? 1 : 0);
+            return result;
+        }
+    }
+}
@@ -1,28 +1,139 @@
 package com.urbandroid.sleep.addon.stats.model.socialjetlag;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-public class ValueCache {
+/**
+ * Lazily computed values, one slot per constant of the key enum. Safe to use from multiple threads.
+ *
+ * Object values are computed just once - the first thread publishes a pending computation into the slot,
+ * runs it, and the other threads asking for the same key wait for its result.
+ * Float values are stored unboxed. They are published by a compare-and-set, so two threads asking at the same
+ * time may both compute the value, and one of the (equal) results wins.
+ */
+public class ValueCache<K extends Enum<K>> {
 
-    private final Map<String,Object> cache = new HashMap<>();
+    //Stands for a computed null value
+    private static final Object NULL = new Object();
 
-    public void put(String key, Object value) {
-        cache.put(key, value);
+    //Float slot with this bit set contains the float bits in the lower half, otherwise it is empty
+    private static final long PRESENT = 1L << 32;
+
+    private final AtomicReferenceArray<Object> slots;
+    private final AtomicLongArray floatSlots;
+
+    public ValueCache(Class<K> keyType) {
+        int size = keyType.getEnumConstants().length;
+        slots = new AtomicReferenceArray<>(size);
+        floatSlots = new AtomicLongArray(size);
+    }
+
+    /**
+     * If the computation fails, its exception is thrown to all the threads waiting for it, nothing is cached,
+     * and the next call computes the value again.
+     */
+    public <T> T computeIfAbsent(K key, final Supplier<T> valueSupplier) {
+        int slot = key.ordinal();
+        Computation computation = null;
+        while (true) {
+            Object value = slots.get(slot);
+            if (value == null) {
+                if (computation == null) {
+                    computation = new Computation(new Callable<Object>() {
+                        @Override
+                        public Object call() {
+                            T value = valueSupplier.get();
+                            return value == null ? NULL : value;
+                        }
+                    });
+                }
+                if (!slots.compareAndSet(slot, null, computation)) {
+                    //Another thread was first, or a failed computation was cleared meanwhile - look again.
+                    continue;
+                }
+                computation.run();
+                value = computation;
+            }
+            if (value instanceof Computation) {
+                value = await(slot, (Computation) value);
+            }
+            return unwrap(value);
+        }
+    }
+
+    /**
+     * @return the value, or null if it has not been computed yet
+     */
+    public <T> T get(K key) {
+        Object value = slots.get(key.ordinal());
+        if (value instanceof Computation) {
+            return null;
+        }
+        return unwrap(value);
+    }
+
+    public float computeFloatIfAbsent(K key, FloatSupplier valueSupplier) {
+        int slot = key.ordinal();
+        long bits = floatSlots.get(slot);
+        if ((bits & PRESENT) == 0) {
+            long computed = PRESENT | (Float.floatToRawIntBits(valueSupplier.get()) & 0xffffffffL);
+            if (floatSlots.compareAndSet(slot, 0, computed)) {
+                bits = computed;
+            } else {
+                bits = floatSlots.get(slot);
+            }
+        }
+        return Float.intBitsToFloat((int) bits);
+    }
+
+    private Object await(int slot, Computation computation) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    Object value = computation.get();
+                    slots.compareAndSet(slot, computation, value);
+                    return value;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    //Nothing is cached, the next call tries again.
+                    slots.compareAndSet(slot, computation, null);
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T unwrap(Object value) {
+        return value == NULL ? null : (T) value;
     }
 
-    public <T> T computeIfAbsent(String key, Supplier valueSupplier) {
-        if (!cache.containsKey(key)) {
-            cache.put(key, valueSupplier.get());
+    private static class Computation extends FutureTask<Object> {
+        Computation(Callable<Object> callable) {
+            super(callable);
         }
-        return (T) cache.get(key);
     }
 
-    public <T> T get(String key) {
-        return (T) cache.get(key);
+    public interface Supplier<T> {
+        T get();
     }
 
-    public interface Supplier {
-        Object get();
+    public interface FloatSupplier {
+        float get();
     }
 }
@@ -4,18 +4,14 @@ import com.urbandroid.common.logging.Logger;
 import com.urbandroid.sleep.addon.stats.model.socialjetlag.ChronoRecord;
 import com.urbandroid.sleep.addon.stats.model.socialjetlag.ChronoRecords;
 import com.urbandroid.sleep.addon.stats.model.socialjetlag.CyclicDoubleKt;
-import com.urbandroid.sleep.addon.stats.model.socialjetlag.CyclicFloatKt;
+import com.urbandroid.sleep.addon.stats.model.socialjetlag.CyclicKernelKt;
 
-import org.apache.commons.math3.ml.clustering.CentroidCluster;
-import org.apache.commons.math3.ml.distance.DistanceMeasure;
+import org.apache.commons.math3.random.JDKRandomGenerator;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.concurrent.Executor;
 
 public class ClusteredChronoRecords {
 
@@ -27,139 +23,197 @@ public class ClusteredChronoRecords {
     private static final int outliersCountPerDimensionAndDirection = 2;
     public  static final int MIN_RECORDS = 30;
 
+    //Parameters of the quantile-distance outlier detection, see CoreAndOutliers
+    static final double OUTLIER_QUANTILE = 0.025;
+    static final double OUTLIER_MULTIPLIER = 5;
+
+    //The k-means runs with a fixed seed, so that the labels and the strength are stable.
+    private static final long SEED = 1;
+
     private final double clusteringStrength;
-    private final Map<ChronoRecord,SleepLabel> labels = new HashMap<>();
+
+    //Wake-up times of the records, to find a record by binary search
+    private final long[] toTimes;
+
+    //Label of each record, by its position in the records
+    private final SleepLabel[] labels;
+
+    //Views of the records with the given label
+    private final EnumMap<SleepLabel, ChronoRecords> labeledRecords = new EnumMap<>(SleepLabel.class);
+
+    //Centers of the two clusters, null if there are too few records
+    private final double[] centers;
 
     public ClusteredChronoRecords(ChronoRecords records) {
+        this(records, 1, null, null);
+    }
+
+    /**
+     * The best of several k-means runs is more stable on data without a clear structure,
+     * at the cost of running the clustering several times.
+     *
+     * @param restarts how many times to run k-means with different initial centers, keeping the best result
+     * @param executor runs the restarts, e.g. a thread pool owned by the caller, or null to run them
+     *                 in the calling thread
+     */
+    public ClusteredChronoRecords(ChronoRecords records, int restarts, Executor executor) {
+        this(records, restarts, executor, null);
+    }
+
+    /**
+     * @param initialCenters centers of the two clusters to start from (see getCenters()), typically of similar
+     *                       records like an overlapping window of the history. If null, the centers are chosen
+     *                       by k-means++.
+     */
+    public ClusteredChronoRecords(ChronoRecords records, double[] initialCenters) {
+        this(records, 1, null, initialCenters);
+    }
+
+    private ClusteredChronoRecords(ChronoRecords records, int restarts, Executor executor, double[] initialCenters) {
 
         long t0 = System.currentTimeMillis();
 
+        this.toTimes = records.copyToTimes();
+        this.labels = new SleepLabel[records.size()];
+
         if (records.size() < MIN_RECORDS) {
             clusteringStrength = 0.0;
+            centers = null;
+            ChronoRecords none = records.subset(new int[0]);
+            for(SleepLabel label : SleepLabel.values()) {
+                labeledRecords.put(label, none);
+            }
         }
         else {
-            List<ChronoRecord> allRecords = new ArrayList<>(records.getRecords().values());
-            CoreAndOutliers<ChronoRecord> coreAndOutliers = findOutliers(allRecords);
+            BitSet outliers = findOutliers(records);
 
-            double oneClusterInertia = getAverageSquareDistance(cluster(coreAndOutliers.getCore(), 1));
-            List<CentroidCluster<ChronoRecordClusterable>> twoClusters = cluster(coreAndOutliers.getCore(), 2);
+            int[] core = new int[records.size() - outliers.cardinality()];
+            int position = -1;
+            for(int i = 0; i < core.length; i++) {
+                position = outliers.nextClearBit(position + 1);
+                core[i] = position;
+            }
+            double[] points = toPoints(records, core);
+
+            double oneClusterInertia = getAverageSquareDistance(CyclicKMeans.centroid(points, cycles));
+            CyclicKMeans.Result twoClusters = cluster(points, 2, restarts, executor, initialCenters);
             double twoClustersInertia = getAverageSquareDistance(twoClusters);
             this.clusteringStrength = oneClusterInertia / twoClustersInertia;
+            this.centers = twoClusters.getCenters();
 
-            assignLabels(twoClusters, coreAndOutliers.getOutliers());
+            assignLabels(records, core, twoClusters, outliers);
         }
 
         long t1 = System.currentTimeMillis();
         Logger.logDebug("ClusteredChronoRecords elapsedTime: "+(t1-t0)+" strength: "+clusteringStrength);
     }
 
-    private void assignLabels(List<CentroidCluster<ChronoRecordClusterable>> clusters,
-                              Collection<ChronoRecord> outliers)
+    private void assignLabels(ChronoRecords records, int[] core, CyclicKMeans.Result clusters, BitSet outliers)
     {
-        CentroidCluster<ChronoRecordClusterable> freeDays, busyDays;
-        if (clusters.get(0).getPoints().size() < clusters.get(1).getPoints().size()) {
-            freeDays = clusters.get(0);
-            busyDays = clusters.get(1);
-        } else {
-            freeDays = clusters.get(1);
-            busyDays = clusters.get(0);
-        }
+        int freeDays = clusters.getSize(0) < clusters.getSize(1) ? 0 : 1;
 
-        for(ChronoRecordClusterable r : freeDays.getPoints()) {
-            labels.put(r.getRecord(), SleepLabel.FREE_DAY);
+        int[] assignments = clusters.getAssignments();
+        for(int i = 0; i < assignments.length; i++) {
+            labels[core[i]] = assignments[i] == freeDays ? SleepLabel.FREE_DAY : SleepLabel.BUSY_DAY;
         }
 
-        for(ChronoRecordClusterable r : busyDays.getPoints()) {
-            labels.put(r.getRecord(), SleepLabel.BUSY_DAY);
+        for(int position = outliers.nextSetBit(0); position >= 0; position = outliers.nextSetBit(position + 1)) {
+            labels[position] = SleepLabel.OUTLIER;
         }
 
-        for(ChronoRecord r : outliers) {
-            labels.put(r, SleepLabel.OUTLIER);
+        int[] counts = new int[SleepLabel.values().length];
+        for(SleepLabel label : labels) {
+            counts[label.ordinal()]++;
+        }
+        int[][] positions = new int[counts.length][];
+        for(SleepLabel label : SleepLabel.values()) {
+            positions[label.ordinal()] = new int[counts[label.ordinal()]];
+        }
+        Arrays.fill(counts, 0);
+        for(int position = 0; position < labels.length; position++) {
+            int label = labels[position].ordinal();
+            positions[label][counts[label]++] = position;
+        }
+        for(SleepLabel label : SleepLabel.values()) {
+            labeledRecords.put(label, records.subset(positions[label.ordinal()]));
         }
     }
 
-    private List<CentroidCluster<ChronoRecordClusterable>> cluster(Collection<ChronoRecord> elements, int noOfClusters) {
-
-        KMeansPlusPlusClusterer<ChronoRecordClusterable> clusterer =
-                new KMeansPlusPlusClusterer<>(noOfClusters, 300, cycles);
-
-        List<ChronoRecordClusterable> elements2 = new ArrayList<>();
-        for(ChronoRecord element : elements) {
-            elements2.add(new ChronoRecordClusterable(element));
+    /**
+     * @return wake-up hours and lengths of the records at the given positions,
+     * as the flat array of points CyclicKMeans works with
+     */
+    private static double[] toPoints(ChronoRecords records, int[] positions) {
+        double[] points = new double[positions.length * cycles.length];
+        int i = 0;
+        for(int position : positions) {
+            points[i++] = records.getToHour(position);
+            points[i++] = records.getLength(position);
         }
-        return clusterer.cluster(elements2);
+        return points;
     }
 
-    private double getAverageSquareDistance(List<CentroidCluster<ChronoRecordClusterable>> clusters) {
-        DistanceMeasure distanceMeasure = new KMeansPlusPlusClusterer.CyclicEuclideanDistance(cycles);
-        double totalDistance = 0;
-        int totalCount = 0;
-        for(CentroidCluster<ChronoRecordClusterable> cluster : clusters) {
-            for(ChronoRecordClusterable element : cluster.getPoints()) {
-                double distance = distanceMeasure.compute(cluster.getCenter().getPoint(), element.getPoint());
-                totalDistance += distance*distance;
-                totalCount++;
-            }
+    private CyclicKMeans.Result cluster(double[] points, int noOfClusters,
+                                        int restarts, Executor executor, double[] initialCenters) {
+        JDKRandomGenerator random = new JDKRandomGenerator();
+        random.setSeed(SEED);
+        CyclicKMeans kMeans = new CyclicKMeans(noOfClusters, 300, cycles, random);
+        if (initialCenters != null) {
+            return kMeans.cluster(points, initialCenters);
         }
-        return totalDistance / totalCount;
+        return kMeans.cluster(points, restarts, executor);
     }
 
-    private CoreAndOutliers<ChronoRecord> findOutliers(final List<ChronoRecord> records) {
-
-        CoreAndOutliers<ChronoRecord> co = CoreAndOutliers.compoundQuantileDistance(
-
-                records, 0.025, 5,
-
-                new DoubleFunction<ChronoRecord>() {
-                    @Override
-                    public double apply(ChronoRecord record) {
-                        return record.getLength();
-                    }
-                },
-
-                new DoubleFunction<ChronoRecord>() {
-
-                    final float meanToHour;
+    private double getAverageSquareDistance(CyclicKMeans.Result clusters) {
+        return clusters.getInertia() / clusters.getAssignments().length;
+    }
 
-                    {
-                        int size = records.size();
-                        float[] toHours = new float[size];
-                        for(int i=0; i<size; i++) {
-                            toHours[i] = getToHour(records.get(i));
-                        }
-                        meanToHour = CyclicFloatKt.center(toHours, 24);
-                    }
+    /**
+     * @return positions of the outlier records
+     */
+    static BitSet findOutliers(ChronoRecords records) {
 
-                    @Override
-                    public double apply(ChronoRecord record) {
-                        return CyclicDoubleKt.signedDistance(getToHour(record), meanToHour, 24);
-                    }
+        int size = records.size();
+        double[] lengthsDouble = new double[size];
+        for(int i=0; i<size; i++) {
+            lengthsDouble[i] = records.getLength(i);
+        }
 
-                    private float getToHour(ChronoRecord record) {
-                        return record.getToHour();
-                    }
-                }
-        );
+        //Signed distance of the wake-up hour from the mean wake-up hour, all in doubles.
+        double[] toHoursDouble = new double[size];
+        for(int i=0; i<size; i++) {
+            toHoursDouble[i] = records.getToHour(i);
+        }
+        double meanToHour = CyclicDoubleKt.center(toHoursDouble, 24);
+        double[] toHourDistances = new double[size];
+        CyclicKernelKt.signedDistances(toHoursDouble, meanToHour, 24, toHourDistances);
 
-        return co;
+        return CoreAndOutliers.compoundQuantileDistanceOutliers(
+                OUTLIER_QUANTILE, OUTLIER_MULTIPLIER, lengthsDouble, toHourDistances);
     }
 
     public SleepLabel getLabel(ChronoRecord record) {
-        if (labels.containsKey(record)) {
-            return labels.get(record);
+        int position = Arrays.binarySearch(toTimes, record.getTo().getTime());
+        if (position >= 0 && labels[position] != null) {
+            return labels[position];
         } else {
             return SleepLabel.OUTLIER;
         }
     }
 
+    /**
+     * @return view of the records with the given label
+     */
     public ChronoRecords getLabeledRecords(SleepLabel label) {
-        Set<ChronoRecord> result = new HashSet<>();
-        for(Map.Entry<ChronoRecord, SleepLabel> entry : labels.entrySet()) {
-            if (entry.getValue() == label) {
-                result.add(entry.getKey());
-            }
-        }
-        return new ChronoRecords(result);
+        return labeledRecords.get(label);
+    }
+
+    /**
+     * @return wake-up hours and lengths of the two cluster centers, as a flat array like in CyclicKMeans,
+     * or null if there were too few records to cluster. Do not modify.
+     */
+    public double[] getCenters() {
+        return centers;
     }
 
     public double getClusteringStrength() {
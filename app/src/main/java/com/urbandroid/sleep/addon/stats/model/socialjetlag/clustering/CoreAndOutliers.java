@@ -1,14 +1,10 @@
 package com.urbandroid.sleep.addon.stats.model.socialjetlag.clustering;
 
-import com.urbandroid.util.ScienceUtil;
-
-import org.apache.commons.math3.stat.descriptive.rank.Percentile;
-import org.apache.commons.math3.util.Pair;
-
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -50,6 +46,38 @@ public class CoreAndOutliers<T> {
         result = result.markOutliers(getQuantileDistanceOutliers(col, quantileY, multiplierY, projectionY));
         return result;
     }
+    /**
+     * Same as compoundQuantileDistance(), but with the projections precomputed into arrays,
+     * projections[p][i] being the p-th projection of the i-th element.
+     *
+     * @return indices of the outliers
+     */
+    public static BitSet compoundQuantileDistanceOutliers(double quantile, double multiplier,
+                                                          double[]... projections) {
+        BitSet outliers = new BitSet();
+        for(double[] projection : projections) {
+            outliers.or(getQuantileDistanceOutliers(projection, quantile, multiplier));
+        }
+        return outliers;
+    }
+
+    private static <T> Set<T> getQuantileDistanceOutliers(Collection<T> col,
+                                                          double quantile, double threshold,
+                                                          DoubleFunction<T> projection) {
+        List<T> elements = new ArrayList<>(col);
+        double[] values = new double[elements.size()];
+        for(int i = 0; i < values.length; i++) {
+            values[i] = projection.apply(elements.get(i));
+        }
+
+        BitSet outlierIndices = getQuantileDistanceOutliers(values, quantile, threshold);
+        Set<T> outliers = new HashSet<>();
+        for(int i = outlierIndices.nextSetBit(0); i >= 0; i = outlierIndices.nextSetBit(i + 1)) {
+            outliers.add(elements.get(i));
+        }
+        return outliers;
+    }
+
     /**
      * Cutting-edge (literally) algorithm for outliers detection.
      *
@@ -65,12 +93,14 @@ public class CoreAndOutliers<T> {
      * So, the resulting outliers are elements that have too big gap (based on the median distance)
      * between them and the neighbour in the direction to the center.
      *
+     * Elements with the same value are never split between the core and the outliers (their distance is 0),
+     * so the outliers are simply the values below the smallest or above the largest core value.
+     *
      * @param quantile 0..1
      * @param threshold >0
+     * @return indices of the outliers in values
      */
-    private static <T> Set<T> getQuantileDistanceOutliers(Collection<T> col,
-                                                          double quantile, double threshold,
-                                                          DoubleFunction<T> projection) {
+    private static BitSet getQuantileDistanceOutliers(double[] values, double quantile, double threshold) {
         if (quantile <= 0 || quantile >= 1) {
             throw new IllegalArgumentException("quantile: "+quantile);
         }
@@ -78,20 +108,12 @@ public class CoreAndOutliers<T> {
             throw new IllegalArgumentException("threshold: "+threshold);
         }
 
-        List<Pair<Double,T>> elements = new ArrayList<>();
-        for(T element : col) {
-            elements.add(Pair.create(projection.apply(element), element));
-        }
-        Collections.sort(elements, new Comparator<Pair<Double, T>>() {
-            @Override
-            public int compare(Pair<Double, T> o1, Pair<Double, T> o2) {
-                return Double.compare(o1.getFirst(), o2.getFirst());
-            }
-        });
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
 
-        int size = elements.size();
+        int size = sorted.length;
 
-        int intQuantile = new Double(Math.ceil(quantile*((double)size))).intValue();
+        int intQuantile = (int) Math.ceil(quantile*((double)size));
         if (intQuantile >= size) {
             intQuantile = size - 1;
         }
@@ -99,32 +121,94 @@ public class CoreAndOutliers<T> {
         int coreStart = intQuantile;
         int coreEnd = size - intQuantile - 1;
         if (coreEnd-coreStart < 3) {
-            return Collections.emptySet();
+            return new BitSet();
         }
 
-        List<Double> coreDistances = new ArrayList<>();
+        double[] coreDistances = new double[coreEnd - coreStart];
         for(int i = coreStart; i<coreEnd; i++) {
-            coreDistances.add(elements.get(i+1).getFirst() - elements.get(i).getFirst());
+            coreDistances[i - coreStart] = sorted[i+1] - sorted[i];
         }
 
-        double referenceCoreDistance = new Percentile().evaluate(ScienceUtil.toDoubleArray(coreDistances), 80);
+        double referenceCoreDistance = percentile(coreDistances, 0.8);
         double distanceThreshold = referenceCoreDistance*threshold;
         for(;
-            coreStart>0 && elements.get(coreStart).getFirst() - elements.get(coreStart-1).getFirst() <= distanceThreshold;
+            coreStart>0 && sorted[coreStart] - sorted[coreStart-1] <= distanceThreshold;
             coreStart--);
         for(;
-            coreEnd < size-1 && elements.get(coreEnd+1).getFirst() - elements.get(coreEnd).getFirst() <= distanceThreshold;
+            coreEnd < size-1 && sorted[coreEnd+1] - sorted[coreEnd] <= distanceThreshold;
             coreEnd++);
 
-        Set<T> outliers  = new HashSet<>();
-        for(int i=0; i<coreStart; i++) {
-            outliers.add(elements.get(i).getSecond());
+        double coreMin = sorted[coreStart];
+        double coreMax = sorted[coreEnd];
+        BitSet outliers = new BitSet(size);
+        for(int i = 0; i < size; i++) {
+            if (Double.compare(values[i], coreMin) < 0 || Double.compare(values[i], coreMax) > 0) {
+                outliers.set(i);
+            }
+        }
+        return outliers;
+    }
+
+    /**
+     * The same as the default (legacy) estimation of commons-math Percentile, but selecting
+     * the order statistics in place instead of copying the values.
+     *
+     * @param p 0..1
+     */
+    static double percentile(double[] values, double p) {
+        int length = values.length;
+        if (length == 0) {
+            return Double.NaN;
         }
-        for(int i=coreEnd+1; i<size; i++) {
-            outliers.add(elements.get(i).getSecond());
+        if (length == 1) {
+            return values[0];
         }
+        double pos = p == 0 ? 0 : p == 1 ? length + 1 : p * (length + 1);
+        double fpos = Math.floor(pos);
+        int intPos = (int) fpos;
+        double dif = pos - fpos;
+        if (pos < 1) {
+            return select(values, 0);
+        }
+        if (pos >= length) {
+            return select(values, length - 1);
+        }
+        double lower = select(values, intPos - 1);
+        double upper = select(values, intPos);
+        return lower + dif * (upper - lower);
+    }
 
-        return outliers;
+    /**
+     * Quickselect - rearranges xs so that xs[k] is the k-th smallest element,
+     * the elements before it are smaller or equal, and the elements after it are greater or equal.
+     */
+    private static double select(double[] xs, int k) {
+        int left = 0;
+        int right = xs.length - 1;
+        while (left < right) {
+            double pivot = xs[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (xs[i] < pivot) i++;
+                while (xs[j] > pivot) j--;
+                if (i <= j) {
+                    double tmp = xs[i];
+                    xs[i] = xs[j];
+                    xs[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                break;
+            }
+        }
+        return xs[k];
     }
 
     private final List<T> core;
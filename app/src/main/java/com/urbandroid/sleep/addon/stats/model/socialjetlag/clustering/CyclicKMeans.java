@@ -0,0 +1,621 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag.clustering;
+
+import com.urbandroid.sleep.addon.stats.model.socialjetlag.CyclicDoubleKt;
+
+import org.apache.commons.math3.exception.ConvergenceException;
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+import org.apache.commons.math3.exception.util.LocalizedFormats;
+import org.apache.commons.math3.random.JDKRandomGenerator;
+import org.apache.commons.math3.random.RandomGenerator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The same algorithm as KMeansPlusPlusClusterer, but operating on primitive arrays
+ * instead of Clusterable points and CentroidCluster objects.
+ *
+ * The points are a flat array of n x dimension coordinates, point i being
+ * points[i*dimension, (i+1)*dimension). The result is an array of cluster indices for the points,
+ * and a flat array of k x dimension coordinates of the cluster centers.
+ *
+ * The assignment step is accelerated by Hamerly's bounds: every point keeps an upper bound
+ * of the distance to its center and a lower bound of the distance to any other center. The bounds are
+ * adjusted by how far the centers moved, and the distances are only computed for the points for which
+ * the bounds cannot prove that the assignment stays the same. The cyclic distance is a metric,
+ * so the triangle inequality the bounds rely on holds.
+ *
+ * The working buffers are reused between runs, so an instance is not thread safe.
+ */
+public class CyclicKMeans {
+
+    /** The number of clusters. */
+    private final int k;
+
+    /** The maximum number of iterations. */
+    private final int maxIterations;
+
+    /** Random generator for choosing initial centers. */
+    private final RandomGenerator random;
+
+    private final double[] cycles;
+    private final int dimension;
+
+    //Relative tolerance of the bounds to rounding errors, the skipped points must be assigned
+    //exactly like if all the distances were computed.
+    private static final double BOUNDS_TOLERANCE = 1e-9;
+
+    //Working buffers
+    private double[] minDistSquared = new double[0];
+    private boolean[] taken = new boolean[0];
+    private double[] upperBounds = new double[0];
+    private double[] lowerBounds = new double[0];
+    private final int[] counts;
+    private final double[] newCenters;
+    private final double[] moves;
+    private final double[] halfSeparations;
+
+
+    /**
+     * @param k the number of clusters to split the data into
+     * @param maxIterations the maximum number of iterations to run the algorithm for.
+     * @param cycles cycle sizes on individual dimensions, see KMeansPlusPlusClusterer
+     */
+    public CyclicKMeans(int k, int maxIterations, double[] cycles) {
+        this(k, maxIterations, cycles, new JDKRandomGenerator());
+    }
+
+    public CyclicKMeans(int k, int maxIterations, double[] cycles, RandomGenerator random) {
+        for(double cycle : cycles) {
+            if (cycle <= 0) {
+                throw new IllegalArgumentException("Cycle must be positive: " + cycle);
+            }
+        }
+        this.k = k;
+        this.maxIterations = maxIterations;
+        this.random = random;
+        this.cycles = cycles;
+        this.dimension = cycles.length;
+        this.counts = new int[k];
+        this.newCenters = new double[k * dimension];
+        this.moves = new double[k];
+        this.halfSeparations = new double[k];
+    }
+
+    /**
+     * @param points n x dimension coordinates
+     */
+    public Result cluster(double[] points) {
+        return cluster(points, null);
+    }
+
+    /**
+     * Warm start - instead of choosing the initial centers by k-means++, starts from the given centers,
+     * e.g. the result of clustering similar data. Nothing is random then, unless a cluster gets empty.
+     *
+     * @param points n x dimension coordinates
+     * @param initialCenters k x dimension coordinates, or null to choose them by k-means++
+     */
+    public Result cluster(double[] points, double[] initialCenters) {
+
+        if (initialCenters != null && initialCenters.length != k * dimension) {
+            throw new IllegalArgumentException("Expected " + k + " centers of dimension " + dimension
+                    + ", got " + initialCenters.length + " coordinates");
+        }
+
+        int n = points.length / dimension;
+
+        // number of clusters has to be smaller or equal the number of data points
+        if (n < k) {
+            throw new NumberIsTooSmallException(n, k, false);
+        }
+
+        if (k == 1) {
+            return centroid(points, cycles);
+        }
+
+        if (minDistSquared.length < n) {
+            minDistSquared = new double[n];
+            taken = new boolean[n];
+            upperBounds = new double[n];
+            lowerBounds = new double[n];
+        }
+
+        double[] centers = new double[k * dimension];
+        int[] assignments = new int[n];
+
+        if (initialCenters == null) {
+            chooseInitialCenters(points, n, centers);
+        } else {
+            System.arraycopy(initialCenters, 0, centers, 0, centers.length);
+        }
+        for (int i = 0; i < n; i++) {
+            assignToNearestCluster(points, i, centers, assignments);
+        }
+
+        // iterate through updating the centers until we're done
+        final int max = (maxIterations < 0) ? Integer.MAX_VALUE : maxIterations;
+        for (int count = 0; count < max; count++) {
+            boolean emptyCluster = updateCenters(points, n, centers, assignments);
+            int changes = assignPointsToClusters(points, n, centers, assignments);
+
+            // if there were no more changes in the point-to-cluster assignment
+            // and there are no empty clusters left, we are done
+            if (changes == 0 && !emptyCluster) {
+                break;
+            }
+        }
+
+        //A separate pass - the assignment passes skip the points whose bounds prove they stay,
+        //so they do not know the exact distances. Computing them there would cost n distances
+        //in every iteration, instead of these n once.
+        return new Result(k, dimension, centers, assignments, inertia(points, n, centers, assignments, cycles));
+    }
+
+    /**
+     * @return sum of the squared cyclic distances of the points from the centers they are assigned to
+     */
+    private static double inertia(double[] points, int n, double[] centers, int[] assignments, double[] cycles) {
+        int dimension = cycles.length;
+        double inertia = 0;
+        for (int i = 0; i < n; i++) {
+            inertia += squaredDistance(points, i * dimension, centers, assignments[i] * dimension, cycles);
+        }
+        return inertia;
+    }
+
+    /**
+     * The single cluster of all the points, in closed form - k-means with k = 1 always ends up
+     * with the center in the centroid of all the points.
+     */
+    public static Result centroid(double[] points, double[] cycles) {
+        int dimension = cycles.length;
+        int n = points.length / dimension;
+        double[] center = new double[dimension];
+        for (int d = 0; d < dimension; d++) {
+            center[d] = points[d];
+            for (int i = 1; i < n; i++) {
+                center[d] = CyclicDoubleKt.center(center[d], i, points[i * dimension + d], 1, cycles[d]);
+            }
+        }
+        int[] assignments = new int[n];
+        return new Result(1, dimension, center, assignments, inertia(points, n, center, assignments, cycles));
+    }
+
+    /**
+     * Runs the clustering several times in the calling thread, see cluster(double[], int, Executor).
+     */
+    public Result cluster(double[] points, int restarts) {
+        return cluster(points, restarts, null);
+    }
+
+    /**
+     * Runs the clustering several times, each time with a different seed drawn from the random generator,
+     * and returns the result with the lowest inertia. With a seeded random generator, the result is
+     * deterministic, no matter how the restarts are run.
+     *
+     * @param executor runs the restarts, e.g. a thread pool owned by the caller, or null to run them
+     *                 one by one in the calling thread
+     * @throws CancellationException if the thread is interrupted while waiting for the restarts
+     */
+    public Result cluster(final double[] points, int restarts, Executor executor) {
+
+        if (restarts <= 1 || k == 1) {
+            return cluster(points);
+        }
+
+        List<FutureTask<Result>> tasks = new ArrayList<>(restarts);
+        try {
+            for (int i = 0; i < restarts; i++) {
+                final long seed = random.nextLong();
+                FutureTask<Result> task = new FutureTask<>(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        JDKRandomGenerator restartRandom = new JDKRandomGenerator();
+                        restartRandom.setSeed(seed);
+                        return new CyclicKMeans(k, maxIterations, cycles, restartRandom).cluster(points);
+                    }
+                });
+                tasks.add(task);
+                if (executor == null) {
+                    task.run();
+                } else {
+                    executor.execute(task);
+                }
+            }
+
+            //Ties go to the earlier restart, so that the result does not depend on the scheduling.
+            Result best = null;
+            for (FutureTask<Result> task : tasks) {
+                Result result = task.get();
+                if (best == null || result.getInertia() < best.getInertia()) {
+                    best = result;
+                }
+            }
+            return best;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CancellationException cancelled = new CancellationException("Interrupted while clustering");
+            cancelled.initCause(e);
+            throw cancelled;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            //No-op for the tasks already done
+            for (FutureTask<Result> task : tasks) {
+                task.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * @return the number of points assigned to different clusters as the iteration before
+     */
+    private int assignPointsToClusters(double[] points, int n, double[] centers, int[] assignments) {
+
+        //The largest and the second largest move of a center since the last assignment
+        double maxMove = 0;
+        double secondMaxMove = 0;
+        int maxMoveCluster = -1;
+        for (int c = 0; c < k; c++) {
+            if (moves[c] > maxMove) {
+                secondMaxMove = maxMove;
+                maxMove = moves[c];
+                maxMoveCluster = c;
+            } else if (moves[c] > secondMaxMove) {
+                secondMaxMove = moves[c];
+            }
+        }
+
+        //Half of the distance to the nearest other center - a point closer than that to its center stays
+        for (int c = 0; c < k; c++) {
+            halfSeparations[c] = Double.POSITIVE_INFINITY;
+        }
+        for (int c = 0; c < k; c++) {
+            for (int other = c + 1; other < k; other++) {
+                double half = distance(centers, c * dimension, centers, other * dimension, cycles) / 2;
+                halfSeparations[c] = Math.min(halfSeparations[c], half);
+                halfSeparations[other] = Math.min(halfSeparations[other], half);
+            }
+        }
+
+        int assignedDifferently = 0;
+        for (int i = 0; i < n; i++) {
+            int current = assignments[i];
+            upperBounds[i] += moves[current];
+            lowerBounds[i] -= current == maxMoveCluster ? secondMaxMove : maxMove;
+
+            double bound = Math.max(halfSeparations[current], lowerBounds[i]) * (1 - BOUNDS_TOLERANCE);
+            if (upperBounds[i] < bound) {
+                continue;
+            }
+            upperBounds[i] = distance(points, i * dimension, centers, current * dimension, cycles);
+            if (upperBounds[i] < bound) {
+                continue;
+            }
+
+            assignToNearestCluster(points, i, centers, assignments);
+            if (assignments[i] != current) {
+                assignedDifferently++;
+            }
+        }
+        return assignedDifferently;
+    }
+
+    /**
+     * Assigns the point to the nearest cluster (the first one in case of a tie, like KMeansPlusPlusClusterer),
+     * and sets its bounds to the exact distances to the nearest and the second nearest center.
+     */
+    private void assignToNearestCluster(double[] points, int i, double[] centers, int[] assignments) {
+        double minDistance = Double.MAX_VALUE;
+        double secondMinDistance = Double.POSITIVE_INFINITY;
+        int minCluster = 0;
+        for (int c = 0; c < k; c++) {
+            double distance = distance(points, i * dimension, centers, c * dimension, cycles);
+            if (distance < minDistance) {
+                secondMinDistance = minDistance;
+                minDistance = distance;
+                minCluster = c;
+            } else if (distance < secondMinDistance) {
+                secondMinDistance = distance;
+            }
+        }
+        assignments[i] = minCluster;
+        upperBounds[i] = minDistance;
+        lowerBounds[i] = k == 1 ? Double.POSITIVE_INFINITY : secondMinDistance;
+    }
+
+    /**
+     * Moves the centers to the centroids of their points. A cluster that has no points gets a point
+     * from the cluster with the largest variance instead, like in KMeansPlusPlusClusterer.
+     *
+     * @return true if there was an empty cluster
+     */
+    private boolean updateCenters(double[] points, int n, double[] centers, int[] assignments) {
+
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < n; i++) {
+            addToCentroid(points, i, assignments[i]);
+        }
+
+        boolean emptyCluster = false;
+        for (int c = 0; c < k; c++) {
+            if (counts[c] == 0) {
+                if (!emptyCluster) {
+                    //Points taken from their clusters in this round
+                    Arrays.fill(taken, 0, n, false);
+                    emptyCluster = true;
+                }
+                int point = takePointFromLargestVarianceCluster(points, n, centers, assignments);
+                int from = assignments[point];
+                counts[from]--;
+                if (from > c) {
+                    //The cluster was not processed yet, its centroid must not contain the point anymore.
+                    counts[from] = 0;
+                    for (int i = 0; i < n; i++) {
+                        if (assignments[i] == from && !taken[i]) {
+                            addToCentroid(points, i, from);
+                        }
+                    }
+                }
+                System.arraycopy(points, point * dimension, newCenters, c * dimension, dimension);
+            }
+        }
+
+        for (int c = 0; c < k; c++) {
+            moves[c] = distance(centers, c * dimension, newCenters, c * dimension, cycles);
+        }
+
+        System.arraycopy(newCenters, 0, centers, 0, centers.length);
+        return emptyCluster;
+    }
+
+    /**
+     * Folds the point into the centroid of the cluster in newCenters, like CyclicDouble.pairwiseCenter()
+     * folds the points of the cluster in their order (the centroid of KMeansPlusPlusClusterer).
+     */
+    private void addToCentroid(double[] points, int i, int c) {
+        for (int d = 0; d < dimension; d++) {
+            double x = points[i * dimension + d];
+            newCenters[c * dimension + d] = counts[c] == 0
+                    ? x
+                    : CyclicDoubleKt.center(newCenters[c * dimension + d], counts[c], x, 1, cycles[d]);
+        }
+        counts[c]++;
+    }
+
+    /**
+     * Get a random point from the cluster with the largest distance variance,
+     * and mark it as taken from the cluster.
+     *
+     * @throws ConvergenceException if clusters are all empty
+     */
+    private int takePointFromLargestVarianceCluster(double[] points, int n, double[] centers, int[] assignments) {
+
+        double maxVariance = Double.NEGATIVE_INFINITY;
+        int selected = -1;
+        for (int c = 0; c < k; c++) {
+            if (counts[c] > 0) {
+
+                // compute the (bias corrected) distance variance of the current cluster,
+                // updating the moments the same way as commons-math Variance
+                int size = 0;
+                double mean = 0;
+                double m2 = 0;
+                for (int i = 0; i < n; i++) {
+                    if (assignments[i] == c && !taken[i]) {
+                        double distance = distance(points, i * dimension, centers, c * dimension, cycles);
+                        size++;
+                        double dev = distance - mean;
+                        double nDev = dev / size;
+                        mean += nDev;
+                        m2 += (size - 1.0) * dev * nDev;
+                    }
+                }
+                double variance = size == 1 ? 0 : m2 / (size - 1);
+
+                // select the cluster with the largest variance
+                if (variance > maxVariance) {
+                    maxVariance = variance;
+                    selected = c;
+                }
+            }
+        }
+
+        // did we find at least one non-empty cluster ?
+        if (selected == -1) {
+            throw new ConvergenceException(LocalizedFormats.EMPTY_CLUSTER_IN_K_MEANS);
+        }
+
+        // take a random point from the cluster
+        int remaining = random.nextInt(counts[selected]);
+        for (int i = 0; i < n; i++) {
+            if (assignments[i] == selected && !taken[i] && remaining-- == 0) {
+                taken[i] = true;
+                return i;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Use K-means++ to choose the initial centers.
+     */
+    private void chooseInitialCenters(double[] points, int n, double[] centers) {
+
+        Arrays.fill(taken, 0, n, false);
+
+        // Choose one center uniformly at random from among the data points.
+        final int firstPointIndex = random.nextInt(n);
+        System.arraycopy(points, firstPointIndex * dimension, centers, 0, dimension);
+        int found = 1;
+
+        // Must mark it as taken
+        taken[firstPointIndex] = true;
+
+        // To keep track of the minimum distance squared of points to the centers.
+        for (int i = 0; i < n; i++) {
+            if (i != firstPointIndex) {
+                double d = distance(points, firstPointIndex * dimension, points, i * dimension, cycles);
+                minDistSquared[i] = d * d;
+            }
+        }
+
+        while (found < k) {
+
+            // Sum up the squared distances for the points not already taken.
+            double distSqSum = 0.0;
+            for (int i = 0; i < n; i++) {
+                if (!taken[i]) {
+                    distSqSum += minDistSquared[i];
+                }
+            }
+
+            // Add one new data point as a center. Each point x is chosen with
+            // probability proportional to D(x)2
+            final double r = random.nextDouble() * distSqSum;
+
+            // The index of the next point to be added to the centers.
+            int nextPointIndex = -1;
+
+            // Sum through the squared min distances again, stopping when sum >= r.
+            double sum = 0.0;
+            for (int i = 0; i < n; i++) {
+                if (!taken[i]) {
+                    sum += minDistSquared[i];
+                    if (sum >= r) {
+                        nextPointIndex = i;
+                        break;
+                    }
+                }
+            }
+
+            // If it's not set to >= 0, the point wasn't found in the previous
+            // for loop, probably because distances are extremely small.  Just pick
+            // the last available point.
+            if (nextPointIndex == -1) {
+                for (int i = n - 1; i >= 0; i--) {
+                    if (!taken[i]) {
+                        nextPointIndex = i;
+                        break;
+                    }
+                }
+            }
+
+            if (nextPointIndex < 0) {
+                // None found -- break from the while loop to prevent an infinite loop.
+                break;
+            }
+
+            System.arraycopy(points, nextPointIndex * dimension, centers, found * dimension, dimension);
+            found++;
+            taken[nextPointIndex] = true;
+
+            if (found < k) {
+                // Now update elements of minDistSquared. We only have to compute
+                // the distance to the new center to do this.
+                for (int i = 0; i < n; i++) {
+                    if (!taken[i]) {
+                        double d = distance(points, nextPointIndex * dimension, points, i * dimension, cycles);
+                        double d2 = d * d;
+                        if (d2 < minDistSquared[i]) {
+                            minDistSquared[i] = d2;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * KMeansPlusPlusClusterer.CyclicEuclideanDistance between a[aOffset, aOffset + cycles.length)
+     * and b[bOffset, bOffset + cycles.length).
+     */
+    public static double distance(double[] a, int aOffset, double[] b, int bOffset, double[] cycles) {
+        return Math.sqrt(squaredDistance(a, aOffset, b, bOffset, cycles));
+    }
+
+    /**
+     * Square of KMeansPlusPlusClusterer.CyclicEuclideanDistance between a[aOffset, aOffset + cycles.length)
+     * and b[bOffset, bOffset + cycles.length).
+     */
+    public static double squaredDistance(double[] a, int aOffset, double[] b, int bOffset, double[] cycles) {
+        double sum = 0;
+        for (int d = 0; d < cycles.length; d++) {
+            final double dp = CyclicDoubleKt.distance(a[aOffset + d], b[bOffset + d], cycles[d]);
+            sum += dp * dp;
+        }
+        return sum;
+    }
+
+    public static class Result {
+
+        private final int k;
+        private final int dimension;
+        private final double[] centers;
+        private final int[] assignments;
+        private final int[] sizes;
+        private final double inertia;
+
+        Result(int k, int dimension, double[] centers, int[] assignments, double inertia) {
+            this.k = k;
+            this.inertia = inertia;
+            this.dimension = dimension;
+            this.centers = centers;
+            this.assignments = assignments;
+            this.sizes = new int[k];
+            for (int c : assignments) {
+                sizes[c]++;
+            }
+        }
+
+        public int getK() {
+            return k;
+        }
+
+        public int getDimension() {
+            return dimension;
+        }
+
+        /**
+         * @return k x dimension coordinates of the cluster centers
+         */
+        public double[] getCenters() {
+            return centers;
+        }
+
+        /**
+         * @return index of the cluster of each point
+         */
+        public int[] getAssignments() {
+            return assignments;
+        }
+
+        /**
+         * @return number of points in the cluster
+         */
+        public int getSize(int cluster) {
+            return sizes[cluster];
+        }
+
+        /**
+         * @return sum of the squared cyclic distances of the points from their final cluster centers
+         */
+        public double getInertia() {
+            return inertia;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag.clustering;
+
+import com.urbandroid.sleep.addon.stats.model.socialjetlag.ChronoRecord;
+import com.urbandroid.sleep.addon.stats.model.socialjetlag.ChronoRecords;
+import com.urbandroid.sleep.addon.stats.model.socialjetlag.CyclicDoubleKt;
+import com.urbandroid.sleep.addon.stats.model.socialjetlag.CyclicStatsAccumulator;
+
+import java.util.Arrays;
+
+import static com.urbandroid.sleep.addon.stats.model.socialjetlag.clustering.ClusteredChronoRecords.OUTLIER_MULTIPLIER;
+import static com.urbandroid.sleep.addon.stats.model.socialjetlag.clustering.ClusteredChronoRecords.OUTLIER_QUANTILE;
+
+/**
+ * The outlier detection of ClusteredChronoRecords (by sleep length and by the signed distance of the wake-up hour
+ * from the mean wake-up hour), for records arriving one by one.
+ *
+ * Both projections of the history are kept in order statistic trees, together with the gaps between
+ * the neighbouring values of their cores. Adding a record is O(log n). The core ranges and the distance thresholds
+ * are refreshed lazily, when a record is classified after the history changed, and the refresh is O(log n)
+ * amortized too - the quantiles bounding the cores move by at most one value per added record.
+ *
+ * A record is classified against the history, as if it did not move the quantiles itself: it is an outlier
+ * if it is further than the distance threshold from the core range in either projection.
+ * For the records of the history, it is the same as the batch detection over the whole history.
+ *
+ * Not thread safe.
+ */
+public class IncrementalOutlierDetector {
+
+    private static final double HOURS_PER_DAY = 24;
+
+    private final CoreTracker lengths = new CoreTracker();
+
+    //The wake-up hours are measured from the anchor, the mean wake-up hour at the time they were measured.
+    //The distances from the current mean are the same, just shifted - unless some of them wrap around the cycle.
+    private CoreTracker toHourDistances;
+    private double toHourAnchor;
+    private CyclicStatsAccumulator toHourStats;
+
+    //All the wake-up hours, to measure them again when the mean moves too far from the anchor
+    private double[] toHours = new double[16];
+    private int size;
+
+    public IncrementalOutlierDetector() {
+        this(new ChronoRecords());
+    }
+
+    public IncrementalOutlierDetector(ChronoRecords history) {
+        for(int i = 0; i < history.size(); i++) {
+            lengths.add(history.getLength(i));
+            appendToHour(history.getToHour(i));
+        }
+        measureToHours();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds the record to the history.
+     */
+    public void add(ChronoRecord record) {
+        lengths.add(record.getLength());
+        double toHour = record.getToHour();
+        appendToHour(toHour);
+        if (Double.isNaN(toHourAnchor)) {
+            measureToHours();
+        } else {
+            toHourStats.add(toHour);
+            toHourDistances.add(CyclicDoubleKt.signedDistance(toHour, toHourAnchor, HOURS_PER_DAY));
+        }
+    }
+
+    /**
+     * @return true if the record is an outlier with respect to the history
+     */
+    public boolean isOutlier(ChronoRecord record) {
+        if (lengths.isOutlier(record.getLength())) {
+            return true;
+        }
+        if (size == 0) {
+            return false;
+        }
+        double shift = CyclicDoubleKt.signedDistance(toHourStats.getCenter(), toHourAnchor, HOURS_PER_DAY);
+        if (toHourDistances.min() - shift <= -HOURS_PER_DAY / 2 || toHourDistances.max() - shift >= HOURS_PER_DAY / 2) {
+            //Rare, the mean moved past the opposite of some wake-up hour, O(n log n)
+            measureToHours();
+            shift = CyclicDoubleKt.signedDistance(toHourStats.getCenter(), toHourAnchor, HOURS_PER_DAY);
+        }
+        double distance = CyclicDoubleKt.signedDistance(record.getToHour(), toHourStats.getCenter(), HOURS_PER_DAY);
+        return toHourDistances.isOutlier(distance + shift);
+    }
+
+    private void appendToHour(double toHour) {
+        if (size == toHours.length) {
+            toHours = Arrays.copyOf(toHours, size * 2);
+        }
+        toHours[size++] = toHour;
+    }
+
+    private void measureToHours() {
+        toHourStats = CyclicStatsAccumulator.of(Arrays.copyOf(toHours, size), HOURS_PER_DAY);
+        toHourAnchor = toHourStats.getCenter();
+        toHourDistances = new CoreTracker();
+        for(int i = 0; i < size; i++) {
+            toHourDistances.add(CyclicDoubleKt.signedDistance(toHours[i], toHourAnchor, HOURS_PER_DAY));
+        }
+    }
+
+    /**
+     * One projection - its sorted values, and the gaps between the neighbouring values of the core
+     * (see CoreAndOutliers.getQuantileDistanceOutliers()), whose percentile gives the distance threshold.
+     */
+    private static class CoreTracker {
+
+        private final OrderStatisticTree values = new OrderStatisticTree();
+
+        //The gaps after the values at the indices [gapsFrom, gapsTo), moved to the core when refreshed
+        private final OrderStatisticTree gaps = new OrderStatisticTree();
+        private int gapsFrom;
+        private int gapsTo;
+
+        private boolean upToDate;
+        //false if there are too few values to have any outliers
+        private boolean hasCore;
+        private double coreMin;
+        private double coreMax;
+        private double distanceThreshold;
+
+        void add(double value) {
+            int index = values.countAtMost(value);
+            if (gapsFrom <= index - 1 && index - 1 < gapsTo) {
+                //The value splits one of the gaps in two
+                gaps.remove(values.gapAt(index - 1));
+                values.insert(value);
+                gaps.insert(values.gapAt(index - 1));
+                gaps.insert(values.gapAt(index));
+                gapsTo++;
+            } else {
+                values.insert(value);
+                if (index <= gapsFrom) {
+                    gapsFrom++;
+                    gapsTo++;
+                }
+            }
+            upToDate = false;
+        }
+
+        double min() {
+            return values.select(0);
+        }
+
+        double max() {
+            return values.select(values.size() - 1);
+        }
+
+        boolean isOutlier(double value) {
+            refresh();
+            return hasCore && (value < coreMin - distanceThreshold || value > coreMax + distanceThreshold);
+        }
+
+        private void refresh() {
+            if (upToDate) {
+                return;
+            }
+            upToDate = true;
+
+            int size = values.size();
+            int intQuantile = (int) Math.ceil(OUTLIER_QUANTILE * size);
+            if (intQuantile >= size) {
+                intQuantile = size - 1;
+            }
+            int coreStart = intQuantile;
+            int coreEnd = size - intQuantile - 1;
+            hasCore = coreEnd - coreStart >= 3;
+            if (!hasCore) {
+                return;
+            }
+
+            moveGaps(coreStart, coreEnd);
+            distanceThreshold = gaps.percentile(0.8) * OUTLIER_MULTIPLIER;
+
+            //Chain the values in the extreme quantiles to the core, while the gaps are small enough
+            coreStart = values.lastGapAbove(coreStart, distanceThreshold) + 1;
+            int end = values.firstGapAbove(coreEnd, distanceThreshold);
+            coreEnd = end < 0 ? size - 1 : end;
+
+            coreMin = values.select(coreStart);
+            coreMax = values.select(coreEnd);
+        }
+
+        private void moveGaps(int from, int to) {
+            while (gapsTo < to) {
+                gaps.insert(values.gapAt(gapsTo++));
+            }
+            while (gapsFrom > from) {
+                gaps.insert(values.gapAt(--gapsFrom));
+            }
+            while (gapsTo > to) {
+                gaps.remove(values.gapAt(--gapsTo));
+            }
+            while (gapsFrom < from) {
+                gaps.remove(values.gapAt(gapsFrom++));
+            }
+        }
+    }
+}
@@ -30,7 +30,7 @@ import java.util.List;
  * First, it was simplified to the bare minimum - discarded all options that we do not use.
  *
  * Second, more importantly, it is adopted to the circular topology, as implemented in CyclicDouble.
- * - CyclicDouble.center() is used instead of arithmetic mean
+ * - CyclicDouble.pairwiseCenter() is used instead of arithmetic mean
  * - CyclicDouble.distance() is used instead of (a-b) for euclidean distance
  */
 public class KMeansPlusPlusClusterer<T extends Clusterable> extends Clusterer<T> {
@@ -349,7 +349,7 @@ public class KMeansPlusPlusClusterer<T extends Clusterable> extends Clusterer<T>
             for (final T p : points) {
                 projection[i++] = p.getPoint()[d];
             }
-            centroid[d] = CyclicDoubleKt.center(projection, cycles[d]);
+            centroid[d] = CyclicDoubleKt.pairwiseCenter(projection, cycles[d]);
         }
         return new DoublePoint(centroid);
     }
@@ -0,0 +1,299 @@
+package com.urbandroid.sleep.addon.stats.model.socialjetlag.clustering;
+
+import java.util.Random;
+
+/**
+ * Sorted multiset of doubles - a treap with subtree sizes, so a value can be inserted or removed,
+ * and the k-th smallest value selected, in O(log n).
+ *
+ * Each value also keeps the gap to the next larger one, and each subtree the largest gap in it,
+ * so the nearest gap larger than a threshold can be found in O(log n) as well.
+ *
+ * Not thread safe.
+ */
+class OrderStatisticTree {
+
+    private static class Node {
+
+        final double value;
+        final int priority;
+
+        //The next value minus this one, -infinity for the largest value
+        double gap = Double.NEGATIVE_INFINITY;
+        double maxGap = Double.NEGATIVE_INFINITY;
+        int size = 1;
+
+        Node left;
+        Node right;
+
+        Node(double value, int priority) {
+            this.value = value;
+            this.priority = priority;
+        }
+    }
+
+    //Seeded, so that the shape of the tree is reproducible
+    private final Random random = new Random(1);
+
+    private Node root;
+
+    int size() {
+        return size(root);
+    }
+
+    /**
+     * Inserts the value after all the equal ones.
+     *
+     * @return index of the inserted value
+     */
+    int insert(double value) {
+        Node[] parts = split(root, value, true);
+        int index = size(parts[0]);
+        root = merge(merge(parts[0], new Node(value, random.nextInt())), parts[1]);
+        updateGap(index - 1);
+        updateGap(index);
+        return index;
+    }
+
+    /**
+     * Removes one of the values equal to the given one.
+     *
+     * @return false if there is no such value
+     */
+    boolean remove(double value) {
+        Node[] lower = split(root, value, false);
+        Node[] equal = splitBySize(lower[1], 1);
+        if (equal[0] == null || Double.compare(equal[0].value, value) != 0) {
+            root = merge(lower[0], merge(equal[0], equal[1]));
+            return false;
+        }
+        int index = size(lower[0]);
+        root = merge(lower[0], equal[1]);
+        updateGap(index - 1);
+        return true;
+    }
+
+    /**
+     * @return the number of values smaller or equal to the given one,
+     * that is the index the value would be inserted at
+     */
+    int countAtMost(double value) {
+        int count = 0;
+        Node node = root;
+        while (node != null) {
+            if (node.value <= value) {
+                count += size(node.left) + 1;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the k-th smallest value, counted from 0
+     */
+    double select(int k) {
+        return node(k).value;
+    }
+
+    /**
+     * @return the (k+1)-th smallest value minus the k-th smallest value, -infinity for the largest value
+     */
+    double gapAt(int k) {
+        return node(k).gap;
+    }
+
+    /**
+     * @return the largest index before the given one, whose gap to the next value is larger than the threshold,
+     * or -1 if there is none
+     */
+    int lastGapAbove(int before, double threshold) {
+        return lastGapAbove(root, 0, before, threshold);
+    }
+
+    /**
+     * @return the smallest index from the given one, whose gap to the next value is larger than the threshold,
+     * or -1 if there is none
+     */
+    int firstGapAbove(int from, double threshold) {
+        return firstGapAbove(root, 0, from, threshold);
+    }
+
+    /**
+     * The same estimation as CoreAndOutliers.percentile(), selecting the order statistics from the tree.
+     *
+     * @param p 0..1
+     */
+    double percentile(double p) {
+        int length = size();
+        if (length == 0) {
+            return Double.NaN;
+        }
+        if (length == 1) {
+            return select(0);
+        }
+        double pos = p == 0 ? 0 : p == 1 ? length + 1 : p * (length + 1);
+        double fpos = Math.floor(pos);
+        int intPos = (int) fpos;
+        double dif = pos - fpos;
+        if (pos < 1) {
+            return select(0);
+        }
+        if (pos >= length) {
+            return select(length - 1);
+        }
+        double lower = select(intPos - 1);
+        double upper = select(intPos);
+        return lower + dif * (upper - lower);
+    }
+
+    private Node node(int k) {
+        if (k < 0 || k >= size()) {
+            throw new IndexOutOfBoundsException(k + " of " + size());
+        }
+        Node node = root;
+        while (true) {
+            int leftSize = size(node.left);
+            if (k < leftSize) {
+                node = node.left;
+            } else if (k > leftSize) {
+                k -= leftSize + 1;
+                node = node.right;
+            } else {
+                return node;
+            }
+        }
+    }
+
+    private void updateGap(int k) {
+        if (k < 0 || k >= size()) {
+            return;
+        }
+        double gap = k + 1 < size() ? select(k + 1) - select(k) : Double.NEGATIVE_INFINITY;
+        setGap(root, k, gap);
+    }
+
+    private static void setGap(Node node, int k, double gap) {
+        int leftSize = size(node.left);
+        if (k < leftSize) {
+            setGap(node.left, k, gap);
+        } else if (k > leftSize) {
+            setGap(node.right, k - leftSize - 1, gap);
+        } else {
+            node.gap = gap;
+        }
+        update(node);
+    }
+
+    private static int lastGapAbove(Node node, int offset, int before, double threshold) {
+        if (node == null || offset >= before || !(node.maxGap > threshold)) {
+            return -1;
+        }
+        int index = offset + size(node.left);
+        int found = lastGapAbove(node.right, index + 1, before, threshold);
+        if (found >= 0) {
+            return found;
+        }
+        if (index < before && node.gap > threshold) {
+            return index;
+        }
+        return lastGapAbove(node.left, offset, before, threshold);
+    }
+
+    private static int firstGapAbove(Node node, int offset, int from, double threshold) {
+        if (node == null || offset + node.size <= from || !(node.maxGap > threshold)) {
+            return -1;
+        }
+        int index = offset + size(node.left);
+        int found = firstGapAbove(node.left, offset, from, threshold);
+        if (found >= 0) {
+            return found;
+        }
+        if (index >= from && node.gap > threshold) {
+            return index;
+        }
+        return firstGapAbove(node.right, index + 1, from, threshold);
+    }
+
+    /**
+     * @param inclusive whether the values equal to the given one go to the first part
+     * @return the values smaller than (or equal to) the given one, and the rest
+     */
+    private static Node[] split(Node node, double value, boolean inclusive) {
+        if (node == null) {
+            return new Node[2];
+        }
+        if (node.value < value || (inclusive && node.value == value)) {
+            Node[] parts = split(node.right, value, inclusive);
+            node.right = parts[0];
+            update(node);
+            parts[0] = node;
+            return parts;
+        } else {
+            Node[] parts = split(node.left, value, inclusive);
+            node.left = parts[1];
+            update(node);
+            parts[1] = node;
+            return parts;
+        }
+    }
+
+    /**
+     * @return the first count values, and the rest
+     */
+    private static Node[] splitBySize(Node node, int count) {
+        if (node == null) {
+            return new Node[2];
+        }
+        int leftSize = size(node.left);
+        if (leftSize < count) {
+            Node[] parts = splitBySize(node.right, count - leftSize - 1);
+            node.right = parts[0];
+            update(node);
+            parts[0] = node;
+            return parts;
+        } else {
+            Node[] parts = splitBySize(node.left, count);
+            node.left = parts[1];
+            update(node);
+            parts[1] = node;
+            return parts;
+        }
+    }
+
+    /**
+     * All the values in a must be smaller or equal to the values in b.
+     */
+    private static Node merge(Node a, Node b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            update(a);
+            return a;
+        } else {
+            b.left = merge(a, b.left);
+            update(b);
+            return b;
+        }
+    }
+
+    private static void update(Node node) {
+        node.size = 1 + size(node.left) + size(node.right);
+        node.maxGap = Math.max(node.gap, Math.max(maxGap(node.left), maxGap(node.right)));
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static double maxGap(Node node) {
+        return node == null ? Double.NEGATIVE_INFINITY : node.maxGap;
+    }
+}
@@ -128,6 +128,15 @@ public class Events implements Serializable {
         }
     }
 
+    /**
+     * @return per-label scalars of the events, collected in a single pass without copying the events
+     */
+    public EventsSummary getSummary() {
+        synchronized (sync) {
+            return new EventsSummary(events);
+        }
+    }
+
     public int size() {
         synchronized (sync) {
             return events.size();
@@ -0,0 +1,97 @@
+package com.urbandroid.sleep.domain;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Per-label scalars of the events of a record (count, first, last and earliest timestamp),
+ * collected in a single pass over the events, without copying them.
+ *
+ * First and last are in the order of the events (like EventsUtil.getEvents(events, label).get(0)),
+ * earliest is the minimal timestamp.
+ */
+public class EventsSummary {
+
+    private static final int LABELS = EventLabel.values().length;
+
+    private final int[] counts = new int[LABELS];
+    private final long[] firstTimestamps = new long[LABELS];
+    private final long[] lastTimestamps = new long[LABELS];
+    private final long[] earliestTimestamps = new long[LABELS];
+
+    EventsSummary(List<? extends IEvent> events) {
+        Arrays.fill(earliestTimestamps, Long.MAX_VALUE);
+        for (int i = 0; i < events.size(); i++) {
+            IEvent event = events.get(i);
+            if (event == null || event.getLabel() == null) {
+                continue;
+            }
+            int label = event.getLabel().ordinal();
+            long timestamp = event.getTimestamp();
+            if (counts[label] == 0) {
+                firstTimestamps[label] = timestamp;
+            }
+            lastTimestamps[label] = timestamp;
+            earliestTimestamps[label] = Math.min(earliestTimestamps[label], timestamp);
+            counts[label]++;
+        }
+    }
+
+    public boolean hasLabel(EventLabel label) {
+        return counts[label.ordinal()] > 0;
+    }
+
+    public int getCount(EventLabel label) {
+        return counts[label.ordinal()];
+    }
+
+    /**
+     * @return timestamp of the first event with the label, or -1 if there is none
+     */
+    public long getFirstTimestamp(EventLabel label) {
+        return hasLabel(label) ? firstTimestamps[label.ordinal()] : -1;
+    }
+
+    /**
+     * @return timestamp of the last event with the label, or -1 if there is none
+     */
+    public long getLastTimestamp(EventLabel label) {
+        return hasLabel(label) ? lastTimestamps[label.ordinal()] : -1;
+    }
+
+    /**
+     * @return the minimal timestamp of the events with the label, or -1 if there is none
+     */
+    public long getEarliestTimestamp(EventLabel label) {
+        return hasLabel(label) ? earliestTimestamps[label.ordinal()] : -1;
+    }
+
+    /**
+     * @return minutes between the first ALARM_STARTED and the first ALARM_LATEST, or 0 if there are not both
+     * or the difference is not positive
+     */
+    public int getSmartWakeupMinutes() {
+        if (!hasLabel(EventLabel.ALARM_LATEST) || !hasLabel(EventLabel.ALARM_STARTED)) {
+            return 0;
+        }
+        int beforeAlarmMin = (int) (getFirstTimestamp(EventLabel.ALARM_LATEST) - getFirstTimestamp(EventLabel.ALARM_STARTED)) / 60000;
+        return Math.max(beforeAlarmMin, 0);
+    }
+
+    /**
+     * Same as SleepRecord.getSnoozeTime().
+     *
+     * @param toTime end of the record
+     * @return minutes from the earliest snooze to the end of the record, 0 if there was no snooze,
+     * -1 if the alarm did not start
+     */
+    public int getSnoozeMinutes(long toTime) {
+        if (!hasLabel(EventLabel.ALARM_STARTED)) {
+            return -1;
+        }
+        if (hasLabel(EventLabel.ALARM_SNOOZE)) {
+            return (int) (toTime - getEarliestTimestamp(EventLabel.ALARM_SNOOZE)) / 60000;
+        }
+        return 0;
+    }
+}
@@ -4,10 +4,9 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.urbandroid.common.logging.Logger;
+import com.urbandroid.util.ZoneOffsets;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
@@ -203,7 +202,7 @@ public class SleepRecord implements TimeRecord {
         }
 
         try {
-            return TimeZone.getTimeZone(timezone);
+            return ZoneOffsets.of(timezone).getTimeZone();
         } catch (Exception e) {
             Logger.logWarning("Failed to parse timezone: " + timezone, e);
             return TimeZone.getDefault();
@@ -308,20 +307,7 @@ public class SleepRecord implements TimeRecord {
     }
 
     public int getSnoozeTime() {
-        if (!getEvents().hasLabel(EventLabel.ALARM_STARTED)) {
-            return -1;
-        }
-        List<IEvent> events = EventsUtil.getEvents(getEvents().getCopiedEvents(), EventLabel.ALARM_SNOOZE);
-        if (events.size() > 0) {
-            Collections.sort(events, new Comparator<IEvent>() {
-                @Override
-                public int compare(IEvent e1, IEvent e2) {
-                    return Long.valueOf(e1.getTimestamp()).compareTo(Long.valueOf(e2.getTimestamp()));
-                }
-            });
-            return (int) (getToTime() - events.get(0).getTimestamp()) / 60000;
-        }
-        return 0;
+        return getEvents().getSummary().getSnoozeMinutes(getToTime());
     }
 
 
@@ -131,9 +131,27 @@ public enum Tag {
     }
 
     public static Set<String> getTags(String text) {
+        if (!mayContainTags(text)) {
+            return new LinkedHashSet<String>();
+        }
         return getTags(TAG_NAME_PATTERN, text);
     }
 
+    //Every match of TAG_NAME_PATTERN contains a '#' or a char from U+00A9 up (emoji),
+    //so most comments are ruled out without running the regex.
+    private static boolean mayContainTags(String text) {
+        if (text == null) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '#' || c >= '\u00a9') {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static Set<String> getTags(Pattern pattern, String text) {
         Set<String> tags = new LinkedHashSet<String>();
 
@@ -0,0 +1,261 @@
+package com.urbandroid.util;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Local time of a time zone for epoch milliseconds, computed by plain arithmetic instead of Calendar.
+ *
+ * The offsets of the zone are cached as a table of transitions (DST changes etc.), computed lazily
+ * for the years the looked up times fall into, so looking up an offset is just a binary search.
+ * The instances returned by of() are shared process-wide, a bounded number of the recently used zones
+ * is kept, so the tables are computed once for all the records of a zone. Only the zones
+ * of TimeZone.getTimeZone(id) are shared.
+ * The transitions are found by probing the zone every day, so the table assumes there is at most
+ * one transition per day, which holds for the real zones.
+ *
+ * Thread safe.
+ */
+public final class ZoneOffsets {
+
+    private static final long SECOND = 1000L;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+
+    //The table is extended by this many days at a time
+    private static final long CHUNK_DAYS = 366;
+
+    //Times further from the table than this are not cached, the offset is just computed
+    private static final long MAX_EXTENSION = 50 * CHUNK_DAYS * DAY;
+
+    public static final ZoneOffsets UTC = new ZoneOffsets(TimeZone.getTimeZone("UTC"));
+
+    //Users rarely record sleep in more than a few zones
+    private static final int MAX_CACHED_ZONES = 32;
+
+    private static final Map<String, ZoneOffsets> ZONES = new LinkedHashMap<String, ZoneOffsets>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ZoneOffsets> eldest) {
+            return size() > MAX_CACHED_ZONES;
+        }
+    };
+
+    /**
+     * @return shared offsets of the zone with the given ID, resolved by TimeZone.getTimeZone(id) once
+     * (so unknown IDs are GMT)
+     */
+    public static ZoneOffsets of(String id) {
+        synchronized (ZONES) {
+            ZoneOffsets result = ZONES.get(id);
+            if (result == null) {
+                result = new ZoneOffsets(TimeZone.getTimeZone(id));
+                ZONES.put(id, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @return shared offsets of the zone with the ID of the given zone, if it has the same rules as
+     * TimeZone.getTimeZone(id), otherwise (e.g. a SimpleTimeZone or a modified copy) new offsets not shared
+     * with anybody
+     */
+    public static ZoneOffsets of(TimeZone timeZone) {
+        ZoneOffsets shared = of(timeZone.getID());
+        if (shared.timeZone.hasSameRules(timeZone)) {
+            return shared;
+        }
+        return new ZoneOffsets(timeZone);
+    }
+
+    private final TimeZone timeZone;
+
+    private volatile Table table;
+
+    public ZoneOffsets(TimeZone timeZone) {
+        //TimeZone is mutable, keep a private copy
+        this.timeZone = (TimeZone) timeZone.clone();
+    }
+
+    public String getID() {
+        return timeZone.getID();
+    }
+
+    /**
+     * @return a copy of the zone
+     */
+    public TimeZone getTimeZone() {
+        return (TimeZone) timeZone.clone();
+    }
+
+    /**
+     * @return the same as TimeZone.getOffset(time)
+     */
+    public int getOffset(long time) {
+        Table current = table;
+        if (current == null || time < current.from || time >= current.to) {
+            current = extend(time);
+            if (current == null) {
+                return timeZone.getOffset(time);
+            }
+        }
+        return current.getOffset(time);
+    }
+
+    /**
+     * @return local time in milliseconds since the epoch
+     */
+    public long toLocal(long time) {
+        return time + getOffset(time);
+    }
+
+    /**
+     * @return fractional hour of the day with second precision (e.g. 22:30 is 22.5), computed exactly like
+     * HOUR_OF_DAY + MINUTE/60f + SECOND/3600f of a Calendar in the zone
+     */
+    public float getHourOfDay(long time) {
+        long timeOfDay = floorMod(toLocal(time), DAY);
+        float hour = timeOfDay / HOUR;
+        float minute = (timeOfDay / MINUTE) % 60;
+        float second = (timeOfDay / SECOND) % 60;
+        return hour + minute/60f + second/3600f;
+    }
+
+    /**
+     * @return minutes since the local midnight, e.g. 22:30 is 1350
+     */
+    public int getMinuteOfDay(long time) {
+        return (int) (floorMod(toLocal(time), DAY) / MINUTE);
+    }
+
+    /**
+     * @return day of the week as a java.util.Calendar constant, e.g. Calendar.FRIDAY
+     */
+    public int getDayOfWeek(long time) {
+        //1970-01-01 was a Thursday
+        return (int) floorMod(getLocalEpochDay(time) + Calendar.THURSDAY - Calendar.SUNDAY, 7) + Calendar.SUNDAY;
+    }
+
+    /**
+     * @return the local date, as the number of days since 1970-01-01
+     */
+    public long getLocalEpochDay(long time) {
+        return floorDiv(toLocal(time), DAY);
+    }
+
+    private synchronized Table extend(long time) {
+        Table current = table;
+        long chunk = CHUNK_DAYS * DAY;
+        if (current == null) {
+            current = Table.compute(timeZone, floorDiv(time, chunk) * chunk, floorDiv(time, chunk) * chunk + chunk);
+        } else if (time >= current.from && time < current.to) {
+            return current;
+        } else if (time < current.from - MAX_EXTENSION || time >= current.to + MAX_EXTENSION) {
+            return null;
+        } else if (time < current.from) {
+            long from = floorDiv(time, chunk) * chunk;
+            current = Table.join(Table.compute(timeZone, from, current.from), current);
+        } else {
+            long to = floorDiv(time, chunk) * chunk + chunk;
+            current = Table.join(current, Table.compute(timeZone, current.to, to));
+        }
+        table = current;
+        return current;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long result = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0)) {
+            result--;
+        }
+        return result;
+    }
+
+    private static long floorMod(long x, long y) {
+        return x - floorDiv(x, y) * y;
+    }
+
+    /**
+     * Offsets in [from, to): offsets[0] from the start, offsets[i] from transitions[i-1].
+     */
+    private static class Table {
+
+        final long from, to;
+        final long[] transitions;
+        final int[] offsets;
+
+        Table(long from, long to, long[] transitions, int[] offsets) {
+            this.from = from;
+            this.to = to;
+            this.transitions = transitions;
+            this.offsets = offsets;
+        }
+
+        int getOffset(long time) {
+            int index = Arrays.binarySearch(transitions, time);
+            //A transition applies from its own time on
+            return offsets[index >= 0 ? index + 1 : -index - 1];
+        }
+
+        static Table compute(TimeZone timeZone, long from, long to) {
+            long[] transitions = new long[8];
+            int[] offsets = new int[9];
+            int count = 0;
+            int offset = timeZone.getOffset(from);
+            offsets[0] = offset;
+            for(long day = from; day < to; day += DAY) {
+                long next = Math.min(day + DAY, to);
+                int nextOffset = timeZone.getOffset(next);
+                if (nextOffset != offset) {
+                    //Binary search for the first millisecond with the new offset
+                    long low = day;
+                    long high = next;
+                    while (high - low > 1) {
+                        long middle = low + (high - low) / 2;
+                        if (timeZone.getOffset(middle) == offset) {
+                            low = middle;
+                        } else {
+                            high = middle;
+                        }
+                    }
+                    if (count == transitions.length) {
+                        transitions = Arrays.copyOf(transitions, count * 2);
+                        offsets = Arrays.copyOf(offsets, count * 2 + 1);
+                    }
+                    transitions[count] = high;
+                    offsets[count + 1] = timeZone.getOffset(high);
+                    count++;
+                    offset = offsets[count];
+                }
+            }
+            //The offset at "to" belongs to the next table, drop a transition exactly there.
+            if (count > 0 && transitions[count - 1] >= to) {
+                count--;
+            }
+            return new Table(from, to, Arrays.copyOf(transitions, count), Arrays.copyOf(offsets, count + 1));
+        }
+
+        static Table join(Table first, Table second) {
+            int firstCount = first.transitions.length;
+            int secondCount = second.transitions.length;
+            boolean boundary = first.offsets[firstCount] != second.offsets[0];
+            int count = firstCount + secondCount + (boundary ? 1 : 0);
+            long[] transitions = new long[count];
+            int[] offsets = new int[count + 1];
+            System.arraycopy(first.transitions, 0, transitions, 0, firstCount);
+            System.arraycopy(first.offsets, 0, offsets, 0, firstCount + 1);
+            int index = firstCount;
+            if (boundary) {
+                transitions[index] = second.from;
+                index++;
+            }
+            System.arraycopy(second.transitions, 0, transitions, index, secondCount);
+            System.arraycopy(second.offsets, 0, offsets, index, secondCount + 1);
+            return new Table(first.from, second.to, transitions, offsets);
+        }
+    }
+}